@@ -53,6 +53,24 @@ public abstract class Agent implements Runnable{
    * **/
   public abstract void finalBoard(Board finalBoard);
 
+  /**
+   * Called by the game loop after the agent's move has been played,
+   * so the agent may think on the other players' time.
+   * The game loop calls stopPondering before the agent's next move,
+   * and at the end of the game.
+   * The default implementation does nothing.
+   * @param board a copy of the board after the agent's move, owned by the agent.
+   * **/
+  public void startPondering(Board board){}
+
+  /**
+   * Called by the game loop before the agent is asked for a move,
+   * and at the end of the game.
+   * Must not return until any thinking started by startPondering has stopped.
+   * The default implementation does nothing.
+   * **/
+  public void stopPondering(){}
+
   /**
    * For running threaded games.
    * **/
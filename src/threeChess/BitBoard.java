@@ -0,0 +1,151 @@
+package threeChess;
+
+/**
+ * The occupancy of a position as bit masks, kept by Board alongside its array of pieces,
+ * so that whether a piece is attacked is answered with bitwise operations instead of walking rays.
+ * Every set of positions is a 128 bit mask held in two longs:
+ * bit i of the low word is the position with ordinal i (the Blue and Green thirds),
+ * and bit i of the high word is the position with ordinal 64+i (the Red third).
+ * Occupancy is kept per colour and per piece type.
+ * For every target position the tables hold the positions a Knight, King or pawn could take on it from,
+ * and the positions a Bishop or Rook could take on it from along a line free of pieces,
+ * and for every pair of positions on a line they hold the positions strictly between them.
+ * The tables are built from the MoveTable, so the reversal of direction when a line
+ * crosses into another colour's third of the board is already applied.
+ * Where several lines from a position reach the same target they share the positions before it,
+ * so one mask between each pair of positions is enough, and a sliding piece attacks its target
+ * when the mask between them holds no piece.
+ * **/
+final class BitBoard implements Cloneable {
+
+  /** The number of positions on the board **/
+  private static final int squares = 96;
+  /** Cached values of the colour enumeration, since values() clones the array on every call **/
+  private static final Colour[] colourValues = Colour.values();
+  /** Mask indices of the piece types that attack, two longs per type **/
+  private static final int PAWN = 2*PieceType.PAWN.ordinal(), KNIGHT = 2*PieceType.KNIGHT.ordinal(),
+      BISHOP = 2*PieceType.BISHOP.ordinal(), ROOK = 2*PieceType.ROOK.ordinal(),
+      QUEEN = 2*PieceType.QUEEN.ordinal(), KING = 2*PieceType.KING.ordinal();
+  /** The positions a Knight could take on each position from, two longs per position **/
+  private static final long[] knightFrom = new long[2*squares];
+  /** The positions a King could take on each position from, two longs per position **/
+  private static final long[] kingFrom = new long[2*squares];
+  /** The positions a pawn could take on each position from, indexed by the pawn's colour, then two longs per position **/
+  private static final long[][] pawnFrom = new long[colourValues.length][2*squares];
+  /** The positions a Bishop could take on each position from along an empty line, two longs per position **/
+  private static final long[] diagonalFrom = new long[2*squares];
+  /** The positions a Rook could take on each position from along an empty line, two longs per position **/
+  private static final long[] straightFrom = new long[2*squares];
+  /** The positions strictly between two positions on a line, two longs per pair, indexed by from*squares+to **/
+  private static final long[] between = new long[2*squares*squares];
+
+  static{
+    for(int from = 0; from<squares; from++){
+      Position p = Position.get(from);
+      for(Position[] step: MoveTable.getRays(PieceType.KNIGHT, null, p)) set(knightFrom, step[0].ordinal(), from);
+      for(Position[] step: MoveTable.getRays(PieceType.KING, null, p)) set(kingFrom, step[0].ordinal(), from);
+      for(Colour c: colourValues)
+        for(Position take: MoveTable.getPawnTakes(c, p)) set(pawnFrom[c.ordinal()], take.ordinal(), from);
+      addLines(PieceType.BISHOP, p, diagonalFrom);
+      addLines(PieceType.ROOK, p, straightFrom);
+    }
+  }
+
+  /** Adds the lines of a sliding piece from a position to a table of attackers, and to the masks between. **/
+  private static void addLines(PieceType type, Position p, long[] attackers){
+    int from = p.ordinal();
+    for(Position[] ray: MoveTable.getRays(type, null, p)){
+      long lo = 0, hi = 0;//the positions of the ray passed so far
+      for(Position target: ray){
+        int to = target.ordinal();
+        set(attackers, to, from);
+        between[2*(from*squares+to)] = lo;
+        between[2*(from*squares+to)+1] = hi;
+        if(to<64) lo |= 1L<<to;
+        else hi |= 1L<<(to-64);
+      }
+    }
+  }
+
+  /** Sets the bit of a position in the mask at the given index of a table of masks. **/
+  private static void set(long[] table, int index, int sq){
+    if(sq<64) table[2*index] |= 1L<<sq;
+    else table[2*index+1] |= 1L<<(sq-64);
+  }
+
+  /** Occupancy of each colour, two longs per colour **/
+  private long[] colours = new long[2*colourValues.length];
+  /** Occupancy of each piece type, two longs per type **/
+  private long[] types = new long[2*PieceType.values().length];
+
+  /** Marks a vacant position as holding a piece. **/
+  void add(int sq, Piece piece){
+    int word = sq>>>6;
+    long bit = 1L<<(sq&63);
+    colours[2*piece.getColour().ordinal()+word] |= bit;
+    types[2*piece.getType().ordinal()+word] |= bit;
+  }
+
+  /** Marks the position of a piece as vacant. **/
+  void remove(int sq, Piece piece){
+    int word = sq>>>6;
+    long bit = ~(1L<<(sq&63));
+    colours[2*piece.getColour().ordinal()+word] &= bit;
+    types[2*piece.getType().ordinal()+word] &= bit;
+  }
+
+  /**
+   * Finds a piece of a colour that could take a piece at a position, following the rules of Board.isLegalMove.
+   * Knights, Kings and pawns are found with one mask each, and each Bishop, Rook or Queen on a line to the position
+   * with one test of the mask between them.
+   * @param to the ordinal of the position
+   * @param by the colour of the attacking pieces
+   * @return the ordinal of the position of an attacking piece, or -1 if there is none.
+   * **/
+  int attacker(int to, Colour by){
+    int c = 2*by.ordinal();
+    int t = 2*to;
+    long lo = colours[c] & (knightFrom[t] & types[KNIGHT] | kingFrom[t] & types[KING]
+        | pawnFrom[by.ordinal()][t] & types[PAWN]);
+    long hi = colours[c+1] & (knightFrom[t+1] & types[KNIGHT+1] | kingFrom[t+1] & types[KING+1]
+        | pawnFrom[by.ordinal()][t+1] & types[PAWN+1]);
+    if(lo!=0) return Long.numberOfTrailingZeros(lo);
+    if(hi!=0) return 64+Long.numberOfTrailingZeros(hi);
+    lo = colours[c] & (diagonalFrom[t] & (types[BISHOP]|types[QUEEN]) | straightFrom[t] & (types[ROOK]|types[QUEEN]));
+    hi = colours[c+1] & (diagonalFrom[t+1] & (types[BISHOP+1]|types[QUEEN+1])
+        | straightFrom[t+1] & (types[ROOK+1]|types[QUEEN+1]));
+    long occLo = colours[0]|colours[2]|colours[4], occHi = colours[1]|colours[3]|colours[5];
+    while((lo|hi)!=0){
+      int from;
+      if(lo!=0){ from = Long.numberOfTrailingZeros(lo); lo &= lo-1; }
+      else{ from = 64+Long.numberOfTrailingZeros(hi); hi &= hi-1; }
+      int b = 2*(from*squares+to);
+      if((between[b]&occLo | between[b+1]&occHi)==0) return from;
+    }
+    return -1;
+  }
+
+  /**
+   * @param colour the colour of the King
+   * @return the ordinal of the position of the King of a colour, or -1 if it has been taken.
+   * **/
+  int king(Colour colour){
+    int c = 2*colour.ordinal();
+    long lo = colours[c] & types[KING], hi = colours[c+1] & types[KING+1];
+    if(lo!=0) return Long.numberOfTrailingZeros(lo);
+    if(hi!=0) return 64+Long.numberOfTrailingZeros(hi);
+    return -1;
+  }
+
+  /**
+   * Returns a deep clone of the masks,
+   * such that no operations will affect the original instance.
+   * @return a deep clone of the masks.
+   * **/
+  public Object clone() throws CloneNotSupportedException{
+    BitBoard clone = (BitBoard) super.clone();
+    clone.colours = colours.clone();
+    clone.types = types.clone();
+    return clone;
+  }
+}
@@ -6,26 +6,74 @@ import java.util.*;
 /**
  * Main class for representing game state.
  * The board maps each position to the piece at that posiiton, 
- * or null is free. It also records previous moves, 
+ * or null is free, using an array indexed by the position's ordinal. It also records previous moves, 
  * as well as whose move it is, and which pieces have been 
  * captured by which player.
  * **/
 public class Board implements Cloneable, Serializable {
   
+  /** An upper bound on the number of legal moves in any position, for sizing the buffers passed to generateMoves **/
+  public static final int MAX_MOVES = 512;
   /** Serial version UID for Board serialization and storage**/
   private static final long serialVersionUID = -8547775276050612530L;
-  /** A map from board positions to the pieces at that position **/
-  private HashMap<Position,Piece> board;
+  /** The player colours in turn order, cached since values() clones the array on every call **/
+  private static final Colour[] colours = Colour.values();
+  /** The piece types, cached since values() clones the array on every call **/
+  private static final PieceType[] types = PieceType.values();
+  /** Zobrist keys of each piece at each position, indexed by (type*3+colour)*96+position ordinal **/
+  private static final long[] pieceKeys = new long[PieceType.values().length*Colour.values().length*Position.values().length];
+  /** Zobrist keys of the player whose turn it is, indexed by colour ordinal **/
+  private static final long[] turnKeys = new long[Colour.values().length];
+
+  static{
+    Random random = new Random(0x3C4E55L);//fixed seed, so keys are the same in every run
+    for(int i = 0; i<pieceKeys.length; i++) pieceKeys[i] = random.nextLong();
+    for(int i = 0; i<turnKeys.length; i++) turnKeys[i] = random.nextLong();
+  }
+
+  /** The pieces on the board, indexed by position ordinal, or null where the position is vacant **/
+  private Piece[] board;
+  /** The occupancy of the board as bit masks, updated with the array of pieces, for finding attacks **/
+  private BitBoard bits;
+  /** The Zobrist key of the position, updated whenever a piece is placed, moved or removed, or the turn passes **/
+  private long key;
+  /** The positions of each player's pieces, indexed by colour ordinal then slot. Only the first pieceCount slots are in use **/
+  private int[][] pieceList;
+  /** The number of pieces each player has on the board, indexed by colour ordinal **/
+  private int[] pieceCount;
+  /** The slot in pieceList of the piece at each position, indexed by position ordinal (meaningless where vacant) **/
+  private int[] slot;
+  /** The combined value of each player's pieces on the board, indexed by colour ordinal **/
+  private int[] material;
+  /** The combined value of the pieces each player has taken, indexed by colour ordinal **/
+  private int[] takenValue;
   /**A flag that is true if and only if a King has been captured**/
   private boolean gameOver = false;
   /**The player whose turn it is**/
   private Colour turn = Colour.BLUE;//Blue goes first
-  /**The moves taken so far, represented as an array of two positions, the start and end of the move**/
-  private ArrayList<Position[]> history;//can only be changed by taking moves
+  /**The moves taken so far, encoded as described in Move, with flags for captures, promotions and castling, shared with clones**/
+  private MoveLog history;//can only be changed by taking moves
+  /**The number of moves taken so far**/
+  private int moveCount;
   /**A map indicating which player has taken which piece, to support alternative scoring methods**/
-  private HashMap<Colour,ArrayList<Piece>> captured;
-  /**A Map representing the remaining time allowed for each player, in milliseconds**/
-  private HashMap<Colour,Integer> timeLeft;
+  private EnumMap<Colour,ArrayList<Piece>> captured;
+  /**The remaining time allowed for each player, in milliseconds, indexed by colour ordinal**/
+  private int[] timeLeft;
+  /**The time each player had at the start of the game, in milliseconds**/
+  private int timeLimit;
+  /**Undo records of the moves made by makeMove and not yet unmade, the most recent last. See play for the layout**/
+  private long[] undo = new long[0];
+  /**The number of records on the undo stack**/
+  private int undoCount = 0;
+
+  /**Bit layout of an undo record: the taken piece (type*3+colour+1, or 0 if none) in the lowest bits**/
+  private static final int UNDO_TAKEN_BITS = 5;
+  /**Flags of an undo record**/
+  private static final long UNDO_PROMOTED = 1L<<5, UNDO_CASTLED = 1L<<6, UNDO_GAME_OVER = 1L<<7, UNDO_OUT_OF_TIME = 1L<<8;
+  /**Shifts of the start and end ordinals, and of the time taken, in an undo record**/
+  private static final int UNDO_START = 9, UNDO_END = 16, UNDO_TIME = 32;
+  /**Shift of the slot the taken piece held in its player's piece list, in an undo record**/
+  private static final int UNDO_SLOT = 23;
 
   /**
    * Initialises the board, placing all pieces at their initial position.
@@ -33,24 +81,32 @@ public class Board implements Cloneable, Serializable {
    * @param time the number of milliseconds each player has in total for the entire game.
    * **/
   public Board(int time){
-    board = new HashMap<Position,Piece>();
+    timeLimit = time;
+    board = new Piece[Position.values().length];
+    bits = new BitBoard();
+    key = turnKeys[turn.ordinal()];
+    pieceList = new int[colours.length][16];
+    pieceCount = new int[colours.length];
+    slot = new int[board.length];
+    material = new int[colours.length];
+    takenValue = new int[colours.length];
     try{
       for(Colour c: Colour.values()){
-        board.put(Position.get(c,0,0),new Piece(PieceType.ROOK,c)); board.put(Position.get(c,0,7), new Piece(PieceType.ROOK,c));
-        board.put(Position.get(c,0,1),new Piece(PieceType.KNIGHT,c)); board.put(Position.get(c,0,6), new Piece(PieceType.KNIGHT,c));
-        board.put(Position.get(c,0,2),new Piece(PieceType.BISHOP,c)); board.put(Position.get(c,0,5), new Piece(PieceType.BISHOP,c));
-        board.put(Position.get(c,0,3),new Piece(PieceType.QUEEN,c)); board.put(Position.get(c,0,4), new Piece(PieceType.KING,c));
+        add(Position.get(c,0,0),Piece.get(PieceType.ROOK,c)); add(Position.get(c,0,7), Piece.get(PieceType.ROOK,c));
+        add(Position.get(c,0,1),Piece.get(PieceType.KNIGHT,c)); add(Position.get(c,0,6), Piece.get(PieceType.KNIGHT,c));
+        add(Position.get(c,0,2),Piece.get(PieceType.BISHOP,c)); add(Position.get(c,0,5), Piece.get(PieceType.BISHOP,c));
+        add(Position.get(c,0,3),Piece.get(PieceType.QUEEN,c)); add(Position.get(c,0,4), Piece.get(PieceType.KING,c));
         for(int i = 0; i<8; i++){
-          board.put(Position.get(c,1,i), new Piece(PieceType.PAWN,c));
+          add(Position.get(c,1,i), Piece.get(PieceType.PAWN,c));
         }
       }
     }catch(ImpossiblePositionException e){}//no impossible positions in this code
-    history = new ArrayList<Position[]>();
-    captured = new HashMap<Colour,ArrayList<Piece>>();
-    timeLeft = new HashMap<Colour,Integer>();
+    history = new MoveLog();
+    captured = new EnumMap<Colour,ArrayList<Piece>>(Colour.class);
+    timeLeft = new int[Colour.values().length];
     for(Colour c: Colour.values()){
       captured.put(c,new ArrayList<>());
-      timeLeft.put(c,time);
+      timeLeft[c.ordinal()] = time;
     }
   }
 
@@ -61,20 +117,53 @@ public class Board implements Cloneable, Serializable {
 
   /**
    * Return a set of all the positions of pieces belonging to a player.
-   * This is a method of convenience, but is not very fast. 
-   * Time concious players may prefer to maintain their own data structure that persists between moves.
+   * This is a method of convenience, which allocates a new set on every call.
+   * Time concious players may prefer getPieceCount and getPieceLocation, which allocate nothing.
    * @param player the Colour of the player owing the pieces
    * @return a Set of the positions that are occupied by a piece of the given colour.
    * **/
   public Set<Position> getPositions(Colour player){
     HashSet<Position> positions = new HashSet<Position>();
-    for(Position p : Position.values()){
-      if(board.containsKey(p) && board.get(p).getColour()==player)
-        positions.add(p);
-    }
+    for(int i = 0; i<pieceCount[player.ordinal()]; i++)
+      positions.add(Position.get(pieceList[player.ordinal()][i]));
     return positions;
   }
 
+  /**
+   * Gets the number of pieces a player has on the board.
+   * @param player the Colour of the player owing the pieces
+   * @return the number of pieces of the given colour on the board.
+   * **/
+  public int getPieceCount(Colour player){
+    return pieceCount[player.ordinal()];
+  }
+
+  /**
+   * Gets the position of one of a player's pieces, so a player's pieces can be visited without scanning the board:
+   * <code>for(int i = 0; i&lt;board.getPieceCount(c); i++) visit(board.getPieceLocation(c, i));</code>
+   * The order of the pieces changes when pieces are taken, but unmakeMove restores it exactly,
+   * so the pieces may be visited while moves are made and unmade on the same board.
+   * @param player the Colour of the player owing the pieces
+   * @param index the index of the piece, from 0 to getPieceCount(player)-1
+   * @return the position of the piece.
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a piece.
+   * **/
+  public Position getPieceLocation(Colour player, int index){
+    if(0<=index && index<pieceCount[player.ordinal()]){
+      return Position.get(pieceList[player.ordinal()][index]);
+    }
+    else throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
+  }
+
+  /**
+   * Gets the combined value of a player's pieces on the board, which is kept up to date as moves are made.
+   * @param player the colour of the player
+   * @return the material of the player.
+   * **/
+  public int getMaterial(Colour player){
+    return material[player.ordinal()];
+  }
+
   /** @return a set of all the pieces captured by {@param player}. **/
   public List<Piece> getCaptured(Colour player) {
     return new ArrayList<>(captured.get(player));
@@ -86,7 +175,94 @@ public class Board implements Cloneable, Serializable {
    * @return the piece at that position or null, if the position is vacant.
    * **/
   public Piece getPiece(Position position){
-    return board.get(position);
+    return board[position.ordinal()];
+  }
+
+  /** Places a piece at a vacant position, appending it to its player's piece list. **/
+  private void add(Position position, Piece piece){
+    int c = piece.getColour().ordinal();
+    board[position.ordinal()] = piece;
+    slot[position.ordinal()] = pieceCount[c];
+    pieceList[c][pieceCount[c]++] = position.ordinal();
+    material[c] += piece.getValue();
+    bits.add(position.ordinal(), piece);
+    key ^= pieceKey(piece, position);
+  }
+
+  /**
+   * Removes the piece at a position, moving the last piece of its player's piece list into its slot.
+   * @return the slot the piece held, for restore.
+   * **/
+  private int remove(Position position){
+    Piece piece = board[position.ordinal()];
+    int c = piece.getColour().ordinal();
+    int s = slot[position.ordinal()];
+    int last = pieceList[c][--pieceCount[c]];
+    pieceList[c][s] = last;
+    slot[last] = s;
+    board[position.ordinal()] = null;
+    material[c] -= piece.getValue();
+    bits.remove(position.ordinal(), piece);
+    key ^= pieceKey(piece, position);
+    return s;
+  }
+
+  /** Undoes remove, returning a piece to a vacant position and to the slot it held, so the piece list order is restored. **/
+  private void restore(Position position, Piece piece, int s){
+    add(position, piece);
+    int c = piece.getColour().ordinal();
+    int moved = pieceList[c][s];
+    pieceList[c][s] = position.ordinal();
+    pieceList[c][pieceCount[c]-1] = moved;
+    slot[moved] = pieceCount[c]-1;
+    slot[position.ordinal()] = s;
+  }
+
+  /** Moves the piece at one position to another, vacant, position, keeping its slot in the piece list. **/
+  private void relocate(Position from, Position to){
+    Piece piece = board[from.ordinal()];
+    int s = slot[from.ordinal()];
+    board[from.ordinal()] = null;
+    board[to.ordinal()] = piece;
+    slot[to.ordinal()] = s;
+    pieceList[piece.getColour().ordinal()][s] = to.ordinal();
+    bits.remove(from.ordinal(), piece);
+    bits.add(to.ordinal(), piece);
+    key ^= pieceKey(piece, from)^pieceKey(piece, to);
+  }
+
+  /** Replaces the piece at a position with another piece of the same colour, as when a pawn is promoted. **/
+  private void replace(Position position, Piece piece){
+    Piece old = board[position.ordinal()];
+    board[position.ordinal()] = piece;
+    material[piece.getColour().ordinal()] += piece.getValue()-old.getValue();
+    bits.remove(position.ordinal(), old);
+    bits.add(position.ordinal(), piece);
+    key ^= pieceKey(old, position)^pieceKey(piece, position);
+  }
+
+  /** @return the Zobrist key of a piece standing at a position. **/
+  private static long pieceKey(Piece piece, Position position){
+    return pieceKeys[(piece.getType().ordinal()*colours.length+piece.getColour().ordinal())*96+position.ordinal()];
+  }
+
+  /** Passes the turn to the next (or, when undoing, the previous) player, and updates the key. **/
+  private void setTurn(Colour next){
+    key ^= turnKeys[turn.ordinal()]^turnKeys[next.ordinal()];
+    turn = next;
+  }
+
+  /**
+   * Gets a 64 bit Zobrist key of the position, kept up to date as moves are made and unmade, so it costs nothing to read.
+   * The key covers the piece at every position and the player whose turn it is.
+   * Castling only needs the King and Rook to stand on their initial positions, so the placement already covers it.
+   * Boards reaching the same position by different move orders have the same key,
+   * so it can index transposition tables and detect repeated positions. Different positions collide only by (rare) chance.
+   * The history, captured pieces and remaining time are not part of the key.
+   * @return the key of the position.
+   * **/
+  public long hashKey(){
+    return key;
   }
   
   /**
@@ -166,6 +342,7 @@ public class Board implements Cloneable, Serializable {
    * Note, en passant is not allowed, you can castle after King or rook have moved 
    * but they must have returned to their initial position, all pawns reaching the back row are promoted to Queen,
    * you may move into check, and you may leave your king in check, and you may castle across check.
+   * The steps of each piece are looked up in the precomputed MoveTable rather than recomputed with step.
    * @param start the starting position of the piece
    * @param end the end position the piece intends to move to
    * @return true if and only if the move is legal in the rules of the game.
@@ -177,75 +354,164 @@ public class Board implements Cloneable, Serializable {
     Colour mCol =mover.getColour();
     if(mCol!=turn) return false;//it must be your turn
     if(target!= null && mCol==target.getColour())return false; //you can't take your own piece
-    Direction[][] steps = mover.getType().getSteps();
-    switch(mover.getType()){
-      case PAWN://note, there is no two step first move
-        for(int i = 0; i<steps.length; i++){
-          try{
-            if(end == step(mover,steps[i],start) && 
-                ((target==null && i==0) // 1 step forward, not taking
-                 || (target==null && i==1 // 2 steps forward, 
-                   && start.getColour()==mCol && start.getRow()==1 //must be in initial position
-                   && board.get(Position.get(mCol,2,start.getColumn()))==null)//and can't jump a piece 
-                 || (target!=null && i>1)//or taking diagonally
-                )
-              )
-              return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
+    if(mover.getType()==PieceType.PAWN){
+      if(target!=null){//taking diagonally
+        for(Position take: MoveTable.getPawnTakes(mCol,start))
+          if(end==take) return true;
+      }
+      else{//1 step forward, or 2 steps forward from the initial position, but can't jump a piece
+        for(Position p: MoveTable.getPawnForward(mCol,start)){
+          if(end==p) return true;
+          if(board[p.ordinal()]!=null) break;
         }
-        break;
-      case KNIGHT:
-        for(int i = 0; i<steps.length; i++){
-          try{
-            if(end == step(mover, steps[i],start))
-              return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
+      }
+      return false;
+    }
+    //all other pieces move along the rays of the move table, and cannot pass through any other piece.
+    for(Position[] ray: MoveTable.getRays(mover,start)){
+      for(Position p: ray){
+        if(end==p) return true;
+        if(board[p.ordinal()]!=null) break;
+      }
+    }
+    //note, you can move into check or remain in check. You may also castle across check
+    if(mover.getType()==PieceType.KING && canCastle(mCol,start,end)) return true;
+    return false;//move did not match any legal option.
+  }
+
+  /**
+   * Checks if an encoded move is legal.
+   * @param move the move, encoded as described in Move (any flags are ignored).
+   * @return true if and only if the move is legal in the rules of the game.
+   * **/
+  public boolean isLegalMove(int move){
+    return isLegalMove(Move.getStart(move),Move.getEnd(move));
+  }
+
+  /**
+   * Finds a piece of a colour that could take the piece at a position,
+   * were it that colour's turn, in the rules of isLegalMove (castling never takes a piece).
+   * The answer is found from the bit masks of the board, without generating or walking moves.
+   * @param position the position of the piece that may be attacked
+   * @param by the colour of the attacking pieces
+   * @return the position of an attacking piece, or null if no piece of that colour attacks the position.
+   * **/
+  public Position getAttacker(Position position, Colour by){
+    int from = bits.attacker(position.ordinal(), by);
+    return from<0 ? null : Position.get(from);
+  }
+
+  /**
+   * Checks whether a piece of a colour could take the piece at a position, were it that colour's turn.
+   * @param position the position of the piece that may be attacked
+   * @param by the colour of the attacking pieces
+   * @return true if and only if a piece of the given colour attacks the position.
+   * @see #getAttacker(Position, Colour)
+   * **/
+  public boolean isAttacked(Position position, Colour by){
+    return bits.attacker(position.ordinal(), by)>=0;
+  }
+
+  /**
+   * Gets the position of a player's King, from the bit masks of the board.
+   * @param player the colour of the King
+   * @return the position of the King, or null if it has been taken.
+   * **/
+  public Position getKingPosition(Colour player){
+    int king = bits.king(player);
+    return king<0 ? null : Position.get(king);
+  }
+
+  /**
+   * Checks whether a King may castle.
+   * Castling: Must have king and rook in their original positions, although they may have moved,
+   * and the positions between them must be vacant.
+   * @param mCol the colour of the King
+   * @param start the position of the King
+   * @param end the position the King intends to move to
+   * @return true if and only if the move is a legal castling move.
+   * **/
+  private boolean canCastle(Colour mCol, Position start, Position end){
+    try{
+      if(start==Position.get(mCol,0,4)){
+        if(end==Position.get(mCol,0,6)){
+          Piece castle = board[Position.get(mCol,0,7).ordinal()];
+          Piece empty1 = board[Position.get(mCol,0,5).ordinal()];
+          Piece empty2 = board[Position.get(mCol,0,6).ordinal()];
+          if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mCol
+              && empty1==null && empty2==null)
+            return true;
         }
-        break;
-      case KING://note, you can move into check or remain in check. You may also castle across check
-        for(int i = 0; i<steps.length; i++){
-          try{
-            if(end == step(mover, steps[i],start))
-              return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
+        if(end==Position.get(mCol,0,2)){
+          Piece castle = board[Position.get(mCol,0,0).ordinal()];
+          Piece empty1 = board[Position.get(mCol,0,1).ordinal()];
+          Piece empty2 = board[Position.get(mCol,0,2).ordinal()];
+          Piece empty3 = board[Position.get(mCol,0,3).ordinal()];
+          if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mCol
+              && empty1==null && empty2==null && empty3==null)
+            return true;
         }
-        //castling: Must have king and rook in their original positions, although they may have moved
-        try{
-          if(start==Position.get(mCol,0,4)){
-            if(end==Position.get(mCol,0,6)){
-              Piece castle = board.get(Position.get(mCol,0,7));
-              Piece empty1 = board.get(Position.get(mCol,0,5));
-              Piece empty2 = board.get(Position.get(mCol,0,6));
-              if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mover.getColour()
-                  && empty1==null && empty2==null)
-                return true;
-            }
-            if(end==Position.get(mCol,0,2)){
-              Piece castle = board.get(Position.get(mCol,0,0));
-              Piece empty1 = board.get(Position.get(mCol,0,1));
-              Piece empty2 = board.get(Position.get(mCol,0,2));
-              Piece empty3 = board.get(Position.get(mCol,0,3));
-              if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mover.getColour()
-                  && empty1==null && empty2==null && empty3==null)
-                return true;
-            }
+      }
+    }catch(ImpossiblePositionException e){}//do nothing, all positions possible here.
+    return false;
+  }
+
+  /**
+   * Generates the legal moves of the player whose turn it is, as checked by isLegalMove.
+   * The moves are generated directly from the rays of the MoveTable for each piece in the player's piece list,
+   * rather than testing every pair of positions,
+   * and include two step pawn moves from the initial position, pawn moves onto the back rank 
+   * (which are always promoted to Queen), and castling left and right.
+   * Each move appears once, encoded as described in Move with flags for captures, promotions and castling, 
+   * and no objects are allocated.
+   * @param moves a buffer for the moves, which needs at least MAX_MOVES elements to hold every possible position.
+   * @return the number of moves written to the start of the buffer, which is 0 if the game is over.
+   * **/
+  public int generateMoves(int[] moves){
+    if(gameOver) return 0;
+    int count = 0;
+    int[] pieces = pieceList[turn.ordinal()];
+    for(int i = 0; i<pieceCount[turn.ordinal()]; i++){//only the player's own pieces, rather than every position
+      Position start = Position.get(pieces[i]);
+      Piece mover = board[pieces[i]];
+      if(mover.getType()==PieceType.PAWN){
+        for(Position p: MoveTable.getPawnForward(turn,start)){//forward onto vacant positions, without jumping a piece
+          if(board[p.ordinal()]!=null) break;
+          moves[count++] = Move.encode(start,p,promotion(p));
+        }
+        for(Position p: MoveTable.getPawnTakes(turn,start)){//diagonally, only when taking
+          Piece target = board[p.ordinal()];
+          if(target!=null && target.getColour()!=turn) moves[count++] = Move.encode(start,p,Move.CAPTURE|promotion(p));
+        }
+        continue;
+      }
+      long seenLow = 0, seenHigh = 0;//end positions already generated for this piece, as sliding rays may overlap
+      for(Position[] ray: MoveTable.getRays(mover,start)){
+        for(Position p: ray){
+          Piece target = board[p.ordinal()];
+          if(target!=null && target.getColour()==turn) break;//you can't take your own piece
+          int end = p.ordinal();
+          if(end<64 ? (seenLow>>>end&1L)==0 : (seenHigh>>>(end-64)&1L)==0){
+            if(end<64) seenLow |= 1L<<end; else seenHigh |= 1L<<(end-64);
+            moves[count++] = Move.encode(start,p,target!=null ? Move.CAPTURE : 0);
           }
-        }catch(ImpossiblePositionException e){}//do nothing, all positions possible here.
-        break;
-      default://rook, bishop, queen, just need to check that one of their steps is iterated.
-        for(int i = 0; i<steps.length; i++){
-          Direction[] step = steps[i];
-          try{
-            Position tmp = step(mover,step,start);
-            while(end != tmp && board.get(tmp)==null){
-              tmp = step(mover, step, tmp, tmp.getColour()!=start.getColour());
-            }
-            if(end==tmp) return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
+          if(target!=null) break;//can't pass through any other piece
         }
-        break;
+      }
+      if(mover.getType()==PieceType.KING){
+        try{
+          Position right = Position.get(turn,0,6), left = Position.get(turn,0,2);
+          if(canCastle(turn,start,right)) moves[count++] = Move.encode(start,right,Move.CASTLE);
+          if(canCastle(turn,start,left)) moves[count++] = Move.encode(start,left,Move.CASTLE);
+        }catch(ImpossiblePositionException e){}//do nothing, all positions possible here.
+      }
     }
-    return false;//move did not match any legal option.
+    return count;
+  }
+
+  /** @return the promotion flag for a pawn of the player whose turn it is moving to the position, or 0. **/
+  private int promotion(Position end){
+    return end.getRow()==0 && end.getColour()!=turn ? Move.PROMOTION : 0;
   }
 
   /**
@@ -259,36 +525,148 @@ public class Board implements Cloneable, Serializable {
    * @throws ImpossiblePositionException if the move is not legal
    * **/ 
   public void move(Position start, Position end, int time) throws ImpossiblePositionException{
-    if(isLegalMove(start,end)){
-      Piece mover = board.get(start);
-      Piece taken = board.get(end);
-      timeLeft.put(mover.getColour(),timeLeft.get(mover.getColour())-time);
-      if(timeLeft.get(mover.getColour())<0) gameOver=true;
-      else{
-        board.remove(start);//empty start square
-        if(mover.getType()==PieceType.PAWN && end.getRow()==0 && end.getColour()!=mover.getColour())
-          board.put(end, new Piece(PieceType.QUEEN, mover.getColour()));//promote pawn if back rank
-        else board.put(end,mover);//move piece
-        if(mover.getType()==PieceType.KING && start.getColumn()==4 && start.getRow()==0){
-          if(end.getColumn()==2){//castle left, update rook
-            Position rookPos = Position.get(mover.getColour(),0,0);
-            board.put(Position.get(mover.getColour(),0,3),board.get(rookPos));
-            board.remove(rookPos);
-          }else if(end.getColumn()==6){//castle right, update rook
-            Position rookPos = Position.get(mover.getColour(),0,7);
-            board.put(Position.get(mover.getColour(),0,5),board.get(rookPos));
-            board.remove(rookPos);
-         }
-        }
-        history.add(new Position[]{start,end});
-        if(taken !=null){
-          captured.get(mover.getColour()).add(taken);
-          if(taken.getType()==PieceType.KING) gameOver=true;
-        }
-        turn = Colour.values()[(turn.ordinal()+1)%3];
+    if(isLegalMove(start,end)) play(start,end,time);
+    else throw new ImpossiblePositionException("Illegal Move: "+start+"-"+end);
+  }
+
+  /**
+   * Executes a legal encoded move. 
+   * @param move the move, encoded as described in Move (any flags are ignored).
+   * @param time the number of milliseconds taken to play the move
+   * @throws ImpossiblePositionException if the move is not legal
+   * **/
+  public void move(int move, int time) throws ImpossiblePositionException{
+    move(Move.getStart(move),Move.getEnd(move),time);
+  }
+
+  /**
+   * Executes a move, which has already been checked, and describes how to undo it.
+   * The undo record packs, from the lowest bits: the taken piece (type*3+colour+1, or 0 if none),
+   * flags for a promotion, a castling move, whether the game was already over and whether the player ran out of time,
+   * the start and end ordinals (7 bits each), the slot of the taken piece in its player's piece list (4 bits),
+   * and the time taken in the upper 32 bits.
+   * @param start the starting position of the move
+   * @param end the ending position of the move
+   * @param time the number of milliseconds taken to play the move
+   * @return the undo record of the move.
+   * @throws ImpossiblePositionException if there is no piece to move, or it would not move, which a CheatBoard allows through
+   * **/
+  private long play(Position start, Position end, int time) throws ImpossiblePositionException{
+    Piece mover = getPiece(start);
+    if(mover==null || start==end) throw new ImpossiblePositionException("Impossible Move: "+start+"-"+end);
+    Piece taken = getPiece(end);
+    long record = (long)time<<UNDO_TIME | start.ordinal()<<UNDO_START | end.ordinal()<<UNDO_END;
+    if(gameOver) record |= UNDO_GAME_OVER;
+    timeLeft[mover.getColour().ordinal()]-=time;
+    if(timeLeft[mover.getColour().ordinal()]<0){
+      gameOver=true;
+      return record | UNDO_OUT_OF_TIME;
+    }
+    if(taken!=null) record |= (long)remove(end)<<UNDO_SLOT;//take the piece at the end square
+    relocate(start,end);//move piece
+    if(mover.getType()==PieceType.PAWN && end.getRow()==0 && end.getColour()!=mover.getColour()){
+      replace(end, Piece.get(PieceType.QUEEN, mover.getColour()));//promote pawn if back rank
+      record |= UNDO_PROMOTED;
+    }
+    if(mover.getType()==PieceType.KING && start.getColumn()==4 && start.getRow()==0 && (end.getColumn()==2 || end.getColumn()==6)){
+      boolean left = end.getColumn()==2;
+      Position corner = Position.get(mover.getColour(),0,left?0:7);
+      Position beside = Position.get(mover.getColour(),0,left?3:5);
+      //a CheatBoard may move the king this way without its own rook in the corner, or with a piece beside the king,
+      //and then the corner is left alone
+      Piece rook = getPiece(corner);
+      if(rook!=null && rook.getType()==PieceType.ROOK && rook.getColour()==mover.getColour()
+          && getPiece(beside)==null){//castle, update rook
+        relocate(corner,beside);
+        record |= UNDO_CASTLED;
       }
     }
-    else throw new ImpossiblePositionException("Illegal Move: "+start+"-"+end);
+    int flags = 0;
+    if((record & UNDO_PROMOTED)!=0) flags |= Move.PROMOTION;
+    if((record & UNDO_CASTLED)!=0) flags |= Move.CASTLE;
+    if(taken!=null) flags |= Move.CAPTURE;
+    history = history.append(moveCount++, Move.encode(start,end,flags));
+    if(taken !=null){
+      captured.get(mover.getColour()).add(taken);
+      takenValue[mover.getColour().ordinal()] += taken.getValue();
+      if(taken.getType()==PieceType.KING) gameOver=true;
+      record |= taken.getType().ordinal()*colours.length+taken.getColour().ordinal()+1;
+    }
+    setTurn(colours[(turn.ordinal()+1)%3]);
+    return record;
+  }
+
+  /**
+   * Executes a legal move exactly as move does, 
+   * but also records what is needed to take it back with unmakeMove.
+   * This lets a search play and take back moves on a single board, instead of cloning the board for every move.
+   * Moves made this way must be unmade in the reverse order.
+   * @param start the starting position of the move
+   * @param end the ending position of the move
+   * @param time the number of milliseconds taken to play the move
+   * @throws ImpossiblePositionException if the move is not legal
+   * **/
+  public void makeMove(Position start, Position end, int time) throws ImpossiblePositionException{
+    if(!isLegalMove(start,end)) throw new ImpossiblePositionException("Illegal Move: "+start+"-"+end);
+    long record = play(start,end,time);
+    if(undoCount==undo.length) undo = Arrays.copyOf(undo, Math.max(16, 2*undo.length));
+    undo[undoCount++] = record;
+  }
+
+  /**
+   * Executes a legal move that can be taken back with unmakeMove, for untimed search.
+   * @param start the starting position of the move
+   * @param end the ending position of the move
+   * @throws ImpossiblePositionException if the move is not legal
+   * **/
+  public void makeMove(Position start, Position end) throws ImpossiblePositionException{
+    makeMove(start,end,0);
+  }
+
+  /**
+   * Executes a legal encoded move that can be taken back with unmakeMove, for untimed search.
+   * @param move the move, encoded as described in Move (any flags are ignored).
+   * @throws ImpossiblePositionException if the move is not legal
+   * **/
+  public void makeMove(int move) throws ImpossiblePositionException{
+    makeMove(Move.getStart(move),Move.getEnd(move),0);
+  }
+
+  /**
+   * Takes back the last move made with makeMove, restoring the moved piece (as a pawn if it was promoted),
+   * the taken piece, the Rook of a castling move, the history, the captured pieces, the turn, 
+   * the game over flag and the time of the player.
+   * @throws IllegalStateException if there is no move made with makeMove to take back.
+   * **/
+  public void unmakeMove(){
+    if(undoCount==0) throw new IllegalStateException("No move to unmake.");
+    long record = undo[--undoCount];
+    Position start = Position.get((int)(record>>>UNDO_START)&127);
+    Position end = Position.get((int)(record>>>UNDO_END)&127);
+    gameOver = (record & UNDO_GAME_OVER)!=0;
+    if((record & UNDO_OUT_OF_TIME)!=0){//the move was never played
+      timeLeft[turn.ordinal()] += (int)(record>>>UNDO_TIME);
+      return;
+    }
+    setTurn(colours[(turn.ordinal()+2)%3]);
+    timeLeft[turn.ordinal()] += (int)(record>>>UNDO_TIME);
+    if((record & UNDO_PROMOTED)!=0) replace(end, Piece.get(PieceType.PAWN, turn));
+    relocate(end,start);
+    int taken = (int)(record & ((1<<UNDO_TAKEN_BITS)-1));
+    if(taken!=0){
+      Piece piece = Piece.get(types[(taken-1)/colours.length], colours[(taken-1)%colours.length]);
+      restore(end, piece, (int)(record>>>UNDO_SLOT)&15);
+      ArrayList<Piece> list = captured.get(turn);
+      list.remove(list.size()-1);
+      takenValue[turn.ordinal()] -= piece.getValue();
+    }
+    if((record & UNDO_CASTLED)!=0){//return the rook to its corner
+      try{
+        if(end.getColumn()==2) relocate(Position.get(turn,0,3),Position.get(turn,0,0));
+        else relocate(Position.get(turn,0,5),Position.get(turn,0,7));
+      }catch(ImpossiblePositionException e){}//do nothing, all positions possible here.
+    }
+    history = history.truncate(--moveCount);
   }
 
   /**
@@ -318,7 +696,7 @@ public class Board implements Cloneable, Serializable {
    * @return the number of moves made in the game.
    * **/
   public int getMoveCount(){
-    return history.size();
+    return moveCount;
   }
 
   /**
@@ -329,7 +707,20 @@ public class Board implements Cloneable, Serializable {
    * **/
   public Position[] getMove(int index){
     if(0<=index && index<getMoveCount()){
-      return history.get(index).clone();
+      return Move.toPositions(history.get(index));
+    }
+    else throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
+  }
+
+  /**
+   * returns the move made at the corresponding index without allocating an array.
+   * @param index the index of the move
+   * @return the move encoded as described in Move, with flags for captures, promotions and castling.
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a move.
+   * **/
+  public int getEncodedMove(int index){
+    if(0<=index && index<getMoveCount()){
+      return history.get(index);
     }
     else throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
   }
@@ -339,19 +730,14 @@ public class Board implements Cloneable, Serializable {
    * The score is the combined piece values of the players pieces on the board,
    * plus the value of the pieces taken by that player.
    * This is a convenience method which gives a basic utility value.
+   * Both totals are kept up to date as moves are made, so the score costs nothing to read.
    * It can be used to encourage more aggressive play in agents, 
    * but the traditional scoring is +1 for taking a King, and -1 for losing a King, 
    * @param player the colour of the player
    * @return the score of the player.
    * **/
   public int score(Colour player){
-    int score = 0;
-    for(Position p: Position.values()){
-      Piece piece = board.get(p);
-      if(piece!=null && piece.getColour()==player) score+=piece.getValue();
-    }
-    for(Piece piece: captured.get(player)) score+=piece.getValue();  
-    return score;
+    return material[player.ordinal()]+takenValue[player.ordinal()];
   }
 
   /** 
@@ -368,13 +754,13 @@ public class Board implements Cloneable, Serializable {
    * **/
   public Colour getWinner(){
     if(gameOver){
-      for(Colour c: Colour.values()){
+      for(Colour c: colours){
         for(Piece taken: captured.get(c)){
           if(taken.getType()==PieceType.KING) return c;
         }
-        if(timeLeft.get(c)<0){
+        if(timeLeft[c.ordinal()]<0){
           Colour winner = null; int max = Integer.MIN_VALUE;
-          for(Colour d: Colour.values()){
+          for(Colour d: colours){
             int score = score(d);
             if(d!=c && score>max){
               winner = d; max = score;
@@ -394,11 +780,11 @@ public class Board implements Cloneable, Serializable {
    * **/
   public Colour getLoser(){
     if(gameOver){
-      for(Colour c: Colour.values()){
+      for(Colour c: colours){
         for(Piece taken: captured.get(c)){
           if(taken.getType()==PieceType.KING) return taken.getColour();
         }
-        if(timeLeft.get(c)<0) return c;
+        if(timeLeft[c.ordinal()]<0) return c;
       }
     }
     return null;
@@ -409,22 +795,39 @@ public class Board implements Cloneable, Serializable {
    * @return the time remaining, in milliseconds.
    * **/
   public int getTimeLeft(Colour colour){
-    return timeLeft.get(colour);
+    return timeLeft[colour.ordinal()];
+  }
+
+  /**
+   * Get the time each player had at the start of the game.
+   * ThreeChess.play starts untimed games with 1 millisecond, and never runs the clocks down.
+   * @return the time limit, in milliseconds.
+   * **/
+  public int getTimeLimit(){
+    return timeLimit;
   }
 
   /**
    * Returns a deep clone of the board state, 
    * such that no operations will affect the original board instance.
+   * Pieces are immutable, so they are shared rather than copied, and the history is shared in constant time.
    * @return a deep clone of the board state.
    * **/ 
   public Object clone() throws CloneNotSupportedException{
     Board clone = (Board) super.clone();
-    clone.board = (HashMap<Position,Piece>)board.clone();
-    clone.history = new ArrayList<Position[]>();
-    for(Position[] move: history) clone.history.add(move.clone());
-    clone.timeLeft = (HashMap<Colour,Integer>) timeLeft.clone();
-    clone.captured = new HashMap<Colour,ArrayList<Piece>>();
-    for(Colour c: Colour.values()) clone.captured.put(c, (ArrayList<Piece>) captured.get(c).clone());
+    clone.board = board.clone();
+    clone.bits = (BitBoard) bits.clone();
+    history.freeze(moveCount);//the history is shared with the clone, rather than copied
+    clone.timeLeft = timeLeft.clone();
+    clone.pieceList = new int[colours.length][];
+    for(int c = 0; c<colours.length; c++) clone.pieceList[c] = pieceList[c].clone();
+    clone.pieceCount = pieceCount.clone();
+    clone.slot = slot.clone();
+    clone.material = material.clone();
+    clone.takenValue = takenValue.clone();
+    clone.undo = Arrays.copyOf(undo, undoCount);
+    clone.captured = new EnumMap<Colour,ArrayList<Piece>>(Colour.class);
+    for(Colour c: colours) clone.captured.put(c, (ArrayList<Piece>) captured.get(c).clone());
     return clone;
   }
 }
@@ -0,0 +1,116 @@
+package threeChess;
+
+/**
+ * Static methods for the compact encoding of moves as ints,
+ * used where allocating a two element array of positions for every move is too costly,
+ * such as Board.generateMoves, the board's history and the nodes of a search tree.
+ * The lowest 7 bits hold the ordinal of the end position, the next 7 bits the ordinal of the start position,
+ * and the bits above them flag captures, promotions and castling.
+ * The start and end alone (the key of the move) fit in a short, 
+ * and the flags are only informative: two moves with the same key are the same move.
+ * **/
+public final class Move {
+
+  /** The number of bits holding each position ordinal **/
+  private static final int bits = 7;
+  /** The mask of a position ordinal **/
+  private static final int mask = (1<<bits)-1;
+  /** Flag of a move that takes a piece **/
+  public static final int CAPTURE = 1<<(2*bits);
+  /** Flag of a pawn move that is promoted to Queen **/
+  public static final int PROMOTION = 1<<(2*bits+1);
+  /** Flag of a King move that castles **/
+  public static final int CASTLE = 1<<(2*bits+2);
+  /** The value of no move, which is not the encoding of any move **/
+  public static final int NONE = -1;
+
+  /** Not instantiable, moves are plain ints. **/
+  private Move(){}
+
+  /**
+   * Encodes a move without flags.
+   * @param start the starting position of the move
+   * @param end the end position of the move
+   * @return the move as an int.
+   * **/
+  public static int encode(Position start, Position end){
+    return start.ordinal()<<bits | end.ordinal();
+  }
+
+  /**
+   * Encodes a move with flags.
+   * @param start the starting position of the move
+   * @param end the end position of the move
+   * @param flags any combination of CAPTURE, PROMOTION and CASTLE
+   * @return the move as an int.
+   * **/
+  public static int encode(Position start, Position end, int flags){
+    return encode(start, end) | flags;
+  }
+
+  /**
+   * Encodes a move given as a pair of positions, as returned by Agent.playMove.
+   * @param move a two element array of the start and end positions
+   * @return the move as an int, without flags.
+   * **/
+  public static int encode(Position[] move){
+    return encode(move[0], move[1]);
+  }
+
+  /**
+   * @param move an encoded move
+   * @return the starting position of the move.
+   * **/
+  public static Position getStart(int move){
+    return Position.get(move>>>bits & mask);
+  }
+
+  /**
+   * @param move an encoded move
+   * @return the end position of the move.
+   * **/
+  public static Position getEnd(int move){
+    return Position.get(move & mask);
+  }
+
+  /**
+   * Strips the flags of a move, leaving the start and end,
+   * which identify the move and fit in a short.
+   * @param move an encoded move
+   * @return the key of the move, less than 2^14.
+   * **/
+  public static int getKey(int move){
+    return move & ((1<<(2*bits))-1);
+  }
+
+  /** @return true if the move takes a piece. **/
+  public static boolean isCapture(int move){
+    return (move & CAPTURE)!=0;
+  }
+
+  /** @return true if the move promotes a pawn. **/
+  public static boolean isPromotion(int move){
+    return (move & PROMOTION)!=0;
+  }
+
+  /** @return true if the move is castling. **/
+  public static boolean isCastle(int move){
+    return (move & CASTLE)!=0;
+  }
+
+  /**
+   * @param move an encoded move
+   * @return a two element array of the start and end positions of the move, as returned by Agent.playMove.
+   * **/
+  public static Position[] toPositions(int move){
+    return new Position[]{getStart(move), getEnd(move)};
+  }
+
+  /**
+   * @param move an encoded move
+   * @return a String representation of the move, as written to the game log.
+   * **/
+  public static String toString(int move){
+    return getStart(move)+"-"+getEnd(move);
+  }
+}
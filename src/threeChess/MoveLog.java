@@ -0,0 +1,124 @@
+package threeChess;
+
+import java.io.Serializable;
+
+/**
+ * The move history of a board, as a persistent log of encoded moves that a board shares with its clones.
+ * The log is a chain of fixed size chunks, each holding the moves that follow those of its parent chunk.
+ * A board holds the last chunk of its history and its move count, so cloning a board shares the whole history,
+ * instead of copying it, and only the first board to append after a shared point writes into the shared chunk.
+ * Any other board appending there copies the (at most CHUNK) moves of that chunk into a chunk of its own.
+ * Moves that a clone may be reading are frozen, and never overwritten,
+ * while a move taken back by Board.unmakeMove is released, so searches can make and unmake moves without copying.
+ * Chunks are only changed under their own lock, so boards sharing a log may be used by different threads.
+ * **/
+final class MoveLog implements Serializable {
+
+  /** Serial version UID for serialization and storage**/
+  private static final long serialVersionUID = 4736225513906216810L;
+  /** The number of moves held in a chunk **/
+  static final int CHUNK = 32;
+  /** The chunk holding the preceding moves, or null for the first chunk **/
+  private final MoveLog parent;
+  /** The index in the history of the first move of this chunk **/
+  private final int offset;
+  /** The moves of this chunk **/
+  private final int[] moves;
+  /** The number of moves written to this chunk by the board that owns its tail **/
+  private int filled;
+  /** The number of moves of this chunk that may be read by more than one board, which are never overwritten **/
+  private int frozen;
+  /** The last chunk started after this one, kept so that a board moving back and forth across the boundary reuses it **/
+  private transient MoveLog successor;
+
+  /** Creates the empty log of a new game. **/
+  MoveLog(){
+    this(null, 0, new int[CHUNK], 0);
+  }
+
+  private MoveLog(MoveLog parent, int offset, int[] moves, int filled){
+    this.parent = parent;
+    this.offset = offset;
+    this.moves = moves;
+    this.filled = filled;
+  }
+
+  /**
+   * Appends a move to the history of a board.
+   * @param count the number of moves in the board's history, which must end in this chunk.
+   * @param move the encoded move to append.
+   * @return the chunk the board's history now ends in.
+   * **/
+  MoveLog append(int count, int move){
+    int i = count-offset;
+    if(i==CHUNK){//this chunk is full, so continue in its successor, unless another board holds moves there
+      MoveLog next;
+      synchronized(this){ next = successor; }
+      if(next!=null){
+        synchronized(next){
+          if(next.filled==0){//every move of the successor has been taken back, and no clone can read it
+            next.moves[0] = move;
+            next.filled = 1;
+            return next;
+          }
+        }
+      }
+      next = new MoveLog(this, count, new int[CHUNK], 1);
+      next.moves[0] = move;
+      synchronized(this){ successor = next; }
+      return next;
+    }
+    synchronized(this){
+      if(filled==i){//the board owns the tail of this chunk
+        moves[i] = move;
+        filled++;
+        return this;
+      }
+    }
+    int[] copy = new int[CHUNK];//another board has already appended here, so start a chunk of our own
+    System.arraycopy(moves, 0, copy, 0, i);
+    copy[i] = move;
+    return new MoveLog(parent, offset, copy, i+1);
+  }
+
+  /**
+   * Takes the last move off the history of a board, releasing it to be overwritten if no other board can read it.
+   * @param count the number of moves in the board's history once the move is taken off.
+   * @return the chunk the board's history now ends in.
+   * **/
+  MoveLog truncate(int count){
+    MoveLog chunk = count<offset ? parent : this;
+    int i = count-chunk.offset;
+    synchronized(chunk){
+      if(chunk.filled==i+1 && i>=chunk.frozen) chunk.filled = i;
+    }
+    return chunk;
+  }
+
+  /**
+   * Freezes the moves in the history of a board, so they are never overwritten,
+   * as they are about to be shared with a clone.
+   * Earlier chunks are frozen whole, walking back until a chunk that is already frozen whole,
+   * as every chunk before it was frozen whole at the same time.
+   * @param count the number of moves in the board's history.
+   * **/
+  void freeze(int count){
+    for(MoveLog chunk = this; chunk!=null; chunk = chunk.parent){
+      synchronized(chunk){
+        if(chunk.frozen==CHUNK) return;
+        chunk.frozen = Math.max(chunk.frozen, Math.min(count-chunk.offset, CHUNK));
+      }
+    }
+  }
+
+  /**
+   * Gets a move from the history, walking back one chunk for every CHUNK moves before the last chunk.
+   * @param index the index of the move, which must be less than the number of moves in the history.
+   * @return the encoded move.
+   * **/
+  int get(int index){
+    MoveLog chunk = this;
+    while(index<chunk.offset) chunk = chunk.parent;
+    return chunk.moves[index-chunk.offset];
+  }
+}
@@ -0,0 +1,169 @@
+package threeChess;
+
+import java.util.*;
+
+/**
+ * Precomputed move tables, built once when the class is loaded.
+ * For every position, piece type and colour the table holds the positions the piece can reach
+ * as ordered rays: a ray lists the positions reached by repeating one step, in order,
+ * so a move along a ray is blocked by the first occupied position.
+ * Knights, Kings and pawns have rays of a single step (apart from a pawn's forward ray, described below),
+ * while Rooks, Bishops and Queens have a ray for each step, iterated to the edge of the board.
+ * The reversal of directions that Board.step applies when a piece crosses
+ * into another section of the board is already applied,
+ * so the tables give exactly the positions Board.step would visit.
+ * Castling is not included, as it depends on the position of the Rook rather than a step.
+ * The arrays returned are shared and must not be modified.
+ * **/
+public final class MoveTable {
+
+  /** The rays of every piece type, indexed by type ordinal, then position ordinal. Pawns are in pawnRays. **/
+  private static final Position[][][][] rays = new Position[PieceType.values().length][][][];
+  /** The rays of pawns, indexed by colour ordinal, then position ordinal **/
+  private static final Position[][][][] pawnRays = new Position[Colour.values().length][][][];
+  /** The forward moves of a pawn (one step, or two from its initial position), indexed by colour then position ordinal **/
+  private static final Position[][][] pawnForward = new Position[Colour.values().length][][];
+  /** The diagonal, taking moves of a pawn, indexed by colour then position ordinal **/
+  private static final Position[][][] pawnTakes = new Position[Colour.values().length][][];
+
+  static{
+    Position[] positions = Position.values();
+    Direction[][] pawn = PieceType.PAWN.getSteps();
+    for(PieceType type: PieceType.values()){
+      if(type==PieceType.PAWN) continue;
+      Direction[][] steps = type.getSteps();
+      rays[type.ordinal()] = new Position[positions.length][][];
+      for(Position p: positions){
+        List<Position[]> list = new ArrayList<Position[]>();
+        for(Direction[] step: steps){
+          Position[] ray = type.getStepReps()>1 ? ray(p, step) : single(walk(p, step, false, null));
+          if(ray.length>0 && !contains(list, ray)) list.add(ray);
+        }
+        rays[type.ordinal()][p.ordinal()] = list.toArray(new Position[0][]);
+      }
+    }
+    for(Colour c: Colour.values()){
+      pawnRays[c.ordinal()] = new Position[positions.length][][];
+      pawnForward[c.ordinal()] = new Position[positions.length][];
+      pawnTakes[c.ordinal()] = new Position[positions.length][];
+      for(Position p: positions){
+        List<Position[]> list = new ArrayList<Position[]>();
+        Position one = walk(p, pawn[0], false, c);
+        Position two = p.getColour()==c && p.getRow()==1 ? walk(p, pawn[1], false, c) : null;//two steps only from the initial position
+        if(one!=null) list.add(two!=null ? new Position[]{one, two} : new Position[]{one});
+        int forward = list.size();
+        for(int i = 2; i<pawn.length; i++){
+          Position[] take = single(walk(p, pawn[i], false, c));
+          if(take.length>0 && !contains(list, take)) list.add(take);
+        }
+        pawnForward[c.ordinal()][p.ordinal()] = forward>0 ? list.get(0) : new Position[0];
+        pawnRays[c.ordinal()][p.ordinal()] = list.toArray(new Position[0][]);
+        List<Position> takes = new ArrayList<Position>();
+        for(Position[] take: list.subList(forward, list.size())) takes.add(take[0]);
+        pawnTakes[c.ordinal()][p.ordinal()] = takes.toArray(new Position[0]);
+      }
+    }
+  }
+
+  /** Not instantiable, the tables are static. **/
+  private MoveTable(){}
+
+  /**
+   * Performs one step of a move exactly as Board.step does, reporting steps off the board as null.
+   * @param current the starting position of the step.
+   * @param step an array of the direction sequence in the step
+   * @param reverse whether the steps out to be reversed (if the piece has crossed board section).
+   * @param pawn the colour of the piece if it is a pawn, or null for all other pieces.
+   * @return the position at the end of the step, or null if the step takes the piece off the board.
+   * **/
+  private static Position walk(Position current, Direction[] step, boolean reverse, Colour pawn){
+    for(Direction d: step){
+      if((pawn!=null && pawn!=current.getColour()) || reverse){
+        switch(d){
+          case FORWARD: d = Direction.BACKWARD; break;
+          case BACKWARD: d = Direction.FORWARD; break;
+          case LEFT: d = Direction.RIGHT; break;
+          case RIGHT: d = Direction.LEFT; break;
+        }
+      }
+      int next = Position.neighbour(current.ordinal(), d);
+      if(next<0) return null;//steps went off board
+      if(Position.get(next).getColour()!=current.getColour()) reverse = true;//reverse directions when switching sections
+      current = Position.get(next);
+    }
+    return current;
+  }
+
+  /**
+   * Iterates a step from a position as Board.isLegalMove does for Rooks, Bishops and Queens,
+   * until the step leaves the board (or returns to the start, which is occupied by the moving piece).
+   * @return the positions reached, in order.
+   * **/
+  private static Position[] ray(Position start, Direction[] step){
+    List<Position> ray = new ArrayList<Position>();
+    Position tmp = walk(start, step, false, null);
+    while(tmp!=null && tmp!=start && !ray.contains(tmp)){
+      ray.add(tmp);
+      tmp = walk(tmp, step, tmp.getColour()!=start.getColour(), null);
+    }
+    return ray.toArray(new Position[0]);
+  }
+
+  /** @return a ray of the single position, or an empty ray if the position is null. **/
+  private static Position[] single(Position p){
+    return p==null ? new Position[0] : new Position[]{p};
+  }
+
+  /** @return true if the list already holds an identical ray. **/
+  private static boolean contains(List<Position[]> list, Position[] ray){
+    for(Position[] r: list) if(Arrays.equals(r, ray)) return true;
+    return false;
+  }
+
+  /**
+   * Gets the rays a piece can move along from a position.
+   * Each ray is non-empty, and a move along a ray can end at any position up to and including the first occupied one.
+   * For pawns the forward moves (one step, or two from the initial position) form the first ray, if there is one,
+   * and the remaining rays are the single diagonal moves, which are only legal when taking a piece.
+   * @param type the type of the moving piece
+   * @param colour the colour of the moving piece, which only matters for pawns.
+   * @param position the starting position of the move
+   * @return an array of rays, each an ordered array of positions.
+   * **/
+  public static Position[][] getRays(PieceType type, Colour colour, Position position){
+    if(type==PieceType.PAWN) return pawnRays[colour.ordinal()][position.ordinal()];
+    return rays[type.ordinal()][position.ordinal()];
+  }
+
+  /**
+   * Gets the rays a piece can move along from a position.
+   * @param piece the moving piece
+   * @param position the starting position of the move
+   * @return an array of rays, each an ordered array of positions.
+   * @see #getRays(PieceType, Colour, Position)
+   * **/
+  public static Position[][] getRays(Piece piece, Position position){
+    return getRays(piece.getType(), piece.getColour(), position);
+  }
+
+  /**
+   * Gets the forward moves of a pawn, which are only legal onto a vacant position:
+   * one step forward, followed by two steps forward if the pawn is in its initial position.
+   * @param colour the colour of the pawn
+   * @param position the position of the pawn
+   * @return the ray of forward moves, which is empty if the pawn cannot move forward.
+   * **/
+  public static Position[] getPawnForward(Colour colour, Position position){
+    return pawnForward[colour.ordinal()][position.ordinal()];
+  }
+
+  /**
+   * Gets the positions a pawn can reach by taking diagonally.
+   * @param colour the colour of the pawn
+   * @param position the position of the pawn
+   * @return an array of the distinct positions the pawn may take on.
+   * **/
+  public static Position[] getPawnTakes(Colour colour, Position position){
+    return pawnTakes[colour.ordinal()][position.ordinal()];
+  }
+}
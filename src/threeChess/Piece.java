@@ -7,11 +7,20 @@ import java.io.Serializable;
  * Each piece has a Colour and a Type,
  * and is immutable. 
  * Not an enum so we can have identical, but non-equal pieces, such as pawns. 
+ * The Board itself only uses the shared instances returned by {@link #get(PieceType, Colour)},
+ * so that moving and cloning never allocate pieces.
  * **/
 public class Piece implements Serializable {
   private static final long serialVersionUID = 8757415399259946465L; // Serial version UID for serialization and storage
   private final PieceType type;// the piece's type
   private final Colour colour;//the pieces colour
+  private static final int colours = Colour.values().length;//number of colours, cached to avoid cloning values()
+  private static final Piece[] pieces = new Piece[PieceType.values().length*colours];//one shared piece per type and colour
+  static{
+    for(PieceType type: PieceType.values())
+      for(Colour colour: Colour.values())
+        pieces[type.ordinal()*colours+colour.ordinal()] = new Piece(type,colour);
+  }
 
   /**
    * Constructs a piece of the given type and colour.
@@ -22,6 +31,16 @@ public class Piece implements Serializable {
     this.type = type; this.colour = colour;
   }
 
+  /**
+   * Gets the shared instance of a piece of the given type and colour.
+   * @param type the type of the piece
+   * @param colour the colour of the piece
+   * @return the unique shared piece with that type and colour
+   * **/
+  public static Piece get(PieceType type, Colour colour){
+    return pieces[type.ordinal()*colours+colour.ordinal()];
+  }
+
   /**@return the type of the piece**/
   public PieceType getType(){return type;}
 
@@ -39,6 +39,22 @@ public enum Position {
   /** The position's column **/
   private final int column; // 0-7
 
+  /** All positions in ordinal order, cached since values() clones the array on every call **/
+  private static final Position[] positions = values();
+  /** The number of directions, the stride of the neighbour table **/
+  private static final int directions = Direction.values().length;
+  /**
+   * The ordinal of the neighbouring position in each direction, or -1 if off the board,
+   * indexed by the position's ordinal times the number of directions, plus the direction's ordinal
+   **/
+  private static final int[] neighbours = new int[positions.length * directions];
+
+  static {
+    for (Position p : positions)
+      for (Direction d : Direction.values())
+        neighbours[p.ordinal() * directions + d.ordinal()] = p.findNeighbour(d);
+  }
+
   /**
    * Create a position with the specified colour, row and column
    * 
@@ -74,50 +90,100 @@ public enum Position {
    * @throws ImpossiblePositionException if outside the bounds of the board.
    **/
   public static Position get(Colour colour, int row, int column) throws ImpossiblePositionException {
+    int index = indexOf(colour, row, column);
+    if (index < 0)
+      throw new ImpossiblePositionException("No such position.");
+    return positions[index];
+  }
+
+  /**
+   * Gets the position with the given ordinal, without cloning the array of
+   * values.
+   * 
+   * @param ordinal the ordinal of the position (0-95).
+   * @return the position with that ordinal.
+   * @throws ArrayIndexOutOfBoundsException if the ordinal is not that of a
+   *                                        position.
+   **/
+  public static Position get(int ordinal) {
+    return positions[ordinal];
+  }
+
+  /**
+   * Gets the ordinal of the position corresponding to the specified colour, row
+   * and column.
+   * 
+   * @return the ordinal of the position, or -1 if outside the bounds of the
+   *         board.
+   **/
+  private static int indexOf(Colour colour, int row, int column) {
     int index = row + 4 * column;
-    if (index >= 0 && index < 32) {
-      switch (colour) {
-        case BLUE:
-          return Position.values()[index];
-        case GREEN:
-          return Position.values()[index + 32];
-        case RED:
-          return Position.values()[index + 64];
-      }
-    }
-    throw new ImpossiblePositionException("No such position.");
+    if (index >= 0 && index < 32)
+      return index + 32 * colour.ordinal();
+    return -1;
   }
 
   /**
    * Gets the neighbouring cell in the given direction. Cells always move forward
    * towards the center line, so the direction is independent of piece colour.
+   * This is a wrapper of {@link #neighbour(int, Direction)} for callers that
+   * prefer an exception for moves off the board.
    * 
    * @return the position in the specified direction.
    * @throws ImpossiblePositionException if moving backwards from the back rank,
    *                                     or moving of the side of the board.
    */
   public Position neighbour(Direction direction) throws ImpossiblePositionException {
+    int next = neighbours[ordinal() * directions + direction.ordinal()];
+    if (next < 0)
+      throw new ImpossiblePositionException("Moved off board");
+    return positions[next];
+  }
+
+  /**
+   * Gets the ordinal of the neighbouring cell in the given direction, from a
+   * precomputed table, neither allocating nor throwing exceptions.
+   * 
+   * @param ordinal   the ordinal of the starting position.
+   * @param direction the direction to move in.
+   * @return the ordinal of the position in the specified direction, or -1 if
+   *         moving backwards from the back rank, or moving of the side of the
+   *         board.
+   */
+  public static int neighbour(int ordinal, Direction direction) {
+    return neighbours[ordinal * directions + direction.ordinal()];
+  }
+
+  /**
+   * Computes the neighbouring cell in the given direction, to build the table of
+   * neighbours.
+   * 
+   * @return the ordinal of the position in the specified direction, or -1 if off
+   *         the board.
+   */
+  private int findNeighbour(Direction direction) {
+    Colour[] colours = Colour.values();
     switch (direction) {
       case FORWARD:
         if (row < 3)
-          return get(colour, row + 1, column);
+          return indexOf(colour, row + 1, column);
         if (column < 4)
-          return get(Colour.values()[(colour.ordinal() + 1) % 3], 3, 7 - column);
-        return get(Colour.values()[(colour.ordinal() + 2) % 3], 3, 7 - column);
+          return indexOf(colours[(colour.ordinal() + 1) % 3], 3, 7 - column);
+        return indexOf(colours[(colour.ordinal() + 2) % 3], 3, 7 - column);
       case BACKWARD:
         if (row == 0)
-          throw new ImpossiblePositionException("Moved off board");
-        return get(colour, row - 1, column);
+          return -1;
+        return indexOf(colour, row - 1, column);
       case LEFT:
         if (column == 0)
-          throw new ImpossiblePositionException("Moved off board");
-        return get(colour, row, column - 1);
+          return -1;
+        return indexOf(colour, row, column - 1);
       case RIGHT:
         if (column == 7)
-          throw new ImpossiblePositionException("Moved off board");
-        return get(colour, row, column + 1);
+          return -1;
+        return indexOf(colour, row, column + 1);
     }
-    throw new ImpossiblePositionException("Unreachable code?");
+    return -1;
   }
 
   /**
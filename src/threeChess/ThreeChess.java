@@ -183,6 +183,7 @@ public class ThreeChess {
       Agent current = (colour == Colour.BLUE ? blue : (colour == Colour.GREEN ? green : red));
       long startTime = System.nanoTime();
       Position[] move = null;
+      current.stopPondering(); // charged to the agent's clock
       try {
         move = current.playMove((Board) board.clone());
       } catch (CloneNotSupportedException e) {
@@ -198,6 +199,8 @@ public class ThreeChess {
         try {
           board.move(move[0], move[1], (timed ? (int) time : 0));
           logger.println(colour + ": " + move[0] + '-' + move[1] + " t:" + time);
+          if (!board.gameOver())
+            current.startPondering((Board) board.clone());
           if (displayOn) {
             // There's no point in sleeping if we have to wait for the user to input their
             // move anyway.
@@ -209,16 +212,18 @@ public class ThreeChess {
             }
             display.repaintCanvas();
           }
-        } catch (ImpossiblePositionException e) {
+        } catch (ImpossiblePositionException | CloneNotSupportedException e) {
           logger.println(e.getMessage());
         }
       } else {// Illegal move results in immediate loss, -2 penalty, and a win awarded to the
               // other two players.
         int[] ret = { 1, 1, 1 };
         ret[board.getTurn().ordinal()] = -2;
+        stopPondering(blue, green, red);
         return ret;
       }
     }
+    stopPondering(blue, green, red);
     GUIAgent.currentDisplay = null;
     logger.println("=====Game Over=====");
     int[] ret = { 0, 0, 0 };
@@ -230,6 +235,16 @@ public class ThreeChess {
     return ret;
   }
 
+  /**
+   * Stops the agents thinking on the other players' time, at the end of a game.
+   * 
+   * @param agents the agents of the game.
+   **/
+  private static void stopPondering(Agent... agents) {
+    for (Agent agent : agents)
+      agent.stopPondering();
+  }
+
   /**
    * Runs a timed threeChess game between three players with a graphical board and
    * moves logged to System.out.
@@ -4,6 +4,8 @@ import threeChess.*;
 
 import java.util.Random;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 //Monte-Carlo Tree Search Implementation
 
@@ -14,15 +16,363 @@ import java.util.*;
  **/
 public class MCTSAgent extends Agent {
 
+    /**
+     * How the worker threads share the search.
+     */
+    public enum Parallelism {
+        /** Each thread grows its own tree, and the root statistics are merged. */
+        ROOT,
+        /** All threads grow one shared tree. */
+        TREE
+    }
+
     private String name;
     // private static final Random random = new Random();
     private Colour agentTurn;
+    private final int[] moveBuffer = new int[Board.MAX_MOVES];
+    // the root's moves and their statistics merged across the trees by
+    // getBestMove, which runs every STABILITY_CHECK simulations, so must not
+    // allocate
+    private final int[] rootMoves = new int[Board.MAX_MOVES];
+    private final int[] rootVisits = new int[Board.MAX_MOVES];
+    private final double[] rootWins = new double[Board.MAX_MOVES];
+    // the score of each move proven in any tree, or NaN
+    private final double[] rootProven = new double[Board.MAX_MOVES];
+    // the default number of nodes held by the agent's pools, divided between the
+    // trees
+    private static final int POOL_SIZE = 1 << 18;
+    // the default number of moves after which a rollout is evaluated
+    private static final int ROLLOUT_DEPTH = 60;
+    // the number of colours, which take turns in ordinal order
+    private static final int COLOURS = Colour.values().length;
+    // the colours by ordinal, cached as values() clones the array on every call
+    private static final Colour[] COLOUR_VALUES = Colour.values();
+    // move keys are less than 2^14
+    private static final int MOVE_KEYS = 1 << 14;
+    // the number of simulations between the reports of the best move to the time
+    // manager
+    private static final int STABILITY_CHECK = 16;
+    // the number of trees searched in parallel, one per worker thread
+    private final int threads;
+    // simulations per tree per move, or 0 to search until the time limit
+    private final int iterations;
+    // seeds the random streams of the trees, and picks the fallback move
+    private final Random random;
+    // the trees searched on the previous move, kept so their statistics can be
+    // reused
+    private final MonteCarloTree[] trees;
+    // runs the trees when there is more than one, or null for a single tree
+    private final ExecutorService pool;
+    // whether the threads search separate trees or one shared tree
+    private final Parallelism parallelism;
+    // the nodes of the trees, one pool per tree, or one shared pool, allocated
+    // once and reused from move to move
+    private final NodePool[] nodePools;
+    // the number of nodes held by the pools together
+    private int maxNodes = POOL_SIZE;
+    // the number of moves after which a rollout is evaluated, or 0 for none
+    private int rolloutDepth = ROLLOUT_DEPTH;
+    // chooses the moves of the rollouts
+    private RolloutPolicy rolloutPolicy = RolloutPolicy.KING_CAPTURE_FIRST;
+    // the visits at which a node's own statistics and its AMAF statistics have
+    // equal weight, or 0 to search without RAVE
+    private int raveEquivalence;
+    // the tables sharing statistics between transpositions, one per pool, or
+    // null to search a pure tree
+    private TranspositionTable[] tables;
+    // sets the deadlines of each move, when searching until a time limit
+    private TimeManager time = new TimeManager();
+    // whether the agent searches on the other players' time
+    private boolean ponderingEnabled;
+    // searches the trees while the other players move, or null when not pondering
+    private Thread ponderer;
 
     /**
-     * A no argument constructor, required for tournament management.
+     * A no argument constructor, required for tournament management. Searches
+     * with one thread per available processor.
      **/
     public MCTSAgent() {
+        this(Runtime.getRuntime().availableProcessors(), System.nanoTime());
+    }
+
+    /**
+     * @param threads The number of worker threads, each growing its own tree
+     *                from the root (root parallelisation)
+     * @param seed    The seed of the random number streams
+     */
+    public MCTSAgent(int threads, long seed) {
+        this(threads, seed, 0);
+    }
+
+    /**
+     * Creates an agent with a fixed number of simulations per move. With one
+     * thread the moves it plays depend only on the seed and the game.
+     * 
+     * @param threads    The number of worker threads, each growing its own tree
+     *                   from the root (root parallelisation)
+     * @param seed       The seed of the random number streams
+     * @param iterations The number of simulations each thread runs per move, or 0
+     *                   to search until the time limit
+     */
+    public MCTSAgent(int threads, long seed, int iterations) {
+        this(threads, seed, iterations, Parallelism.ROOT);
+    }
+
+    /**
+     * Creates an agent with a choice of root parallelisation, where each thread
+     * grows its own tree, or tree parallelisation, where the threads share one
+     * tree. A shared tree searches deeper with the same memory, but threads
+     * contend on its nodes.
+     * 
+     * @param threads     The number of worker threads
+     * @param seed        The seed of the random number streams
+     * @param iterations  The number of simulations each thread runs per move, or
+     *                    0 to search until the time limit
+     * @param parallelism How the threads share the search
+     */
+    public MCTSAgent(int threads, long seed, int iterations, Parallelism parallelism) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("MCTSAgent needs at least one thread.");
+        }
         this.name = "MCTSAgent";
+        this.threads = threads;
+        this.iterations = iterations;
+        this.parallelism = parallelism;
+        random = new Random(seed);
+        trees = new MonteCarloTree[threads];
+        nodePools = new NodePool[parallelism == Parallelism.TREE ? 1 : threads];
+        for (int i = 0; i < nodePools.length; i++) {
+            nodePools[i] = new NodePool(maxNodes / nodePools.length);
+        }
+        pool = threads == 1 ? null : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread worker = new Thread(runnable, "MCTSAgent worker");
+            worker.setDaemon(true); // never keep a finished game alive
+            return worker;
+        });
+    }
+
+    /**
+     * Sets how many moves a rollout plays before the position is evaluated,
+     * instead of playing on until a King is taken. Shorter rollouts give more
+     * simulations per move, and a steadier time per simulation.
+     * 
+     * @param rolloutDepth The number of moves, or 0 to play every rollout to the
+     *                     end of the game
+     */
+    public void setRolloutDepth(int rolloutDepth) {
+        if (rolloutDepth < 0) {
+            throw new IllegalArgumentException("Rollout depth cannot be negative.");
+        }
+        this.rolloutDepth = rolloutDepth;
+    }
+
+    /**
+     * Sets the policy choosing the moves of rollouts, such as
+     * RolloutPolicy.UNIFORM, or the default, RolloutPolicy.KING_CAPTURE_FIRST.
+     * 
+     * @param rolloutPolicy The policy, which is shared by every thread
+     */
+    public void setRolloutPolicy(RolloutPolicy rolloutPolicy) {
+        this.rolloutPolicy = Objects.requireNonNull(rolloutPolicy);
+    }
+
+    /**
+     * Turns on Rapid Action Value Estimation. Every simulation then also counts
+     * for each move a player made anywhere in it after a node, as if it had been
+     * made first (all moves as first), so one simulation informs many siblings.
+     * Selection blends a node's AMAF win rate with its own, with the weight
+     * beta = sqrt(k / (3n + k)) of the AMAF rate falling as the node's visits n
+     * grow, to a half at k visits.
+     * 
+     * Turning RAVE on or off starts new trees, as only trees searched with RAVE
+     * hold its buffers.
+     * 
+     * @param raveEquivalence The equivalence parameter k, or 0 (the default) to
+     *                        search without RAVE
+     */
+    public void setRaveEquivalence(int raveEquivalence) {
+        if (raveEquivalence < 0) {
+            throw new IllegalArgumentException("RAVE equivalence cannot be negative.");
+        }
+        stopPondering();
+        if ((raveEquivalence > 0) != (this.raveEquivalence > 0)) {
+            Arrays.fill(trees, null); // the trees hold the RAVE buffers, or none
+        }
+        this.raveEquivalence = raveEquivalence;
+    }
+
+    /**
+     * Turns on transposition tables. The nodes of positions reached by different
+     * move orders, which are common with three players, then share their visits
+     * and rewards through a table keyed by the position's hash, and selection uses
+     * the shared statistics. The table keeps the most visited positions when full,
+     * and is kept from move to move. Changing the table starts new trees.
+     * 
+     * @param entries The number of positions the tables hold, divided between the
+     *                trees as the pools are, or 0 (the default) for no tables
+     */
+    public void setTranspositionTableSize(int entries) {
+        if (entries < 0) {
+            throw new IllegalArgumentException("Table size cannot be negative.");
+        }
+        stopPondering();
+        if (entries == 0) {
+            tables = null;
+        } else {
+            tables = new TranspositionTable[nodePools.length];
+            for (int i = 0; i < tables.length; i++) {
+                tables[i] = new TranspositionTable(entries / tables.length);
+            }
+        }
+        Arrays.fill(trees, null); // the trees hold the old tables
+    }
+
+    /**
+     * Caps the memory of the search at a number of nodes, divided between the
+     * trees as the pools are, and reallocates the pools, which starts new trees.
+     * A full tree stops adding nodes and goes on refining the statistics of the
+     * nodes it has. When a tree is carried over to the next move and fills more
+     * than half its pool, the subtrees of its least visited nodes are dropped to
+     * make room for the new search.
+     * 
+     * @param maxNodes The number of nodes, POOL_SIZE by default
+     */
+    public void setMaxNodes(int maxNodes) {
+        if (maxNodes / nodePools.length <= Board.MAX_MOVES) {
+            throw new IllegalArgumentException("Each tree needs room for more than Board.MAX_MOVES nodes.");
+        }
+        stopPondering();
+        this.maxNodes = maxNodes;
+        Arrays.fill(trees, null); // the trees hold the old pools
+        for (int i = 0; i < nodePools.length; i++) {
+            nodePools[i] = null; // let the old pool go before allocating the new one
+            nodePools[i] = new NodePool(maxNodes / nodePools.length);
+        }
+    }
+
+    /**
+     * Caps the memory of the search at an estimate of the bytes held by the
+     * pools, as setMaxNodes does. The transposition tables, if any, are not
+     * included, and are sized by setTranspositionTableSize.
+     * 
+     * @param bytes The heap the pools may hold
+     */
+    public void setMemoryLimit(long bytes) {
+        setMaxNodes((int) Math.min(Integer.MAX_VALUE, bytes / NodePool.BYTES_PER_NODE));
+    }
+
+    /**
+     * @return The number of nodes in use in the pools, including the slots
+     *         reserved for moves not yet tried. Only an estimate while the agent
+     *         is pondering.
+     */
+    public int getNodeCount() {
+        int count = 0;
+        for (NodePool nodes : nodePools) {
+            count += nodes.getSize();
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of nodes the pools can hold together
+     */
+    public int getMaxNodes() {
+        int capacity = 0;
+        for (NodePool nodes : nodePools) {
+            capacity += nodes.getCapacity();
+        }
+        return capacity;
+    }
+
+    /**
+     * @return An estimate of the bytes of heap held by the search: the pools and
+     *         the transposition tables, which are allocated in full up front,
+     *         and the buffers of each thread's tree, once the first move has
+     *         been searched
+     */
+    public long getMemoryUsage() {
+        long bytes = (long) getMaxNodes() * NodePool.BYTES_PER_NODE;
+        if (tables != null) {
+            for (TranspositionTable table : tables) {
+                bytes += (long) table.getCapacity() * TranspositionTable.BYTES_PER_ENTRY;
+            }
+        }
+        for (MonteCarloTree tree : trees) {
+            if (tree != null) {
+                bytes += tree.getMemoryUsage();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Sets the time manager deciding how long to search for each move, when the
+     * agent is not searching a fixed number of simulations.
+     * 
+     * @param time The time manager
+     */
+    public void setTimeManager(TimeManager time) {
+        stopPondering(); // the ponderer stops through the old time manager
+        this.time = Objects.requireNonNull(time);
+    }
+
+    /**
+     * Turns on pondering. After each move the agent keeps growing its trees from
+     * the position it has moved to, on a daemon thread, while the other players
+     * think, and its next move starts from the subtree of their replies. The
+     * results of a fixed number of simulations then depend on the other players'
+     * thinking time.
+     * 
+     * @param ponderingEnabled True to ponder, False (the default) to sit idle
+     */
+    public void setPondering(boolean ponderingEnabled) {
+        this.ponderingEnabled = ponderingEnabled;
+        if (!ponderingEnabled) {
+            stopPondering();
+        }
+    }
+
+    /**
+     * Starts growing the trees from the position after the agent's move, until
+     * stopPondering is called, if pondering is turned on.
+     * 
+     * @param board The position after the agent's move
+     */
+    @Override
+    public void startPondering(Board board) {
+        stopPondering();
+        if (!ponderingEnabled || board.gameOver()) {
+            return;
+        }
+        time.ponder();
+        prepareTrees(board);
+        ponderer = new Thread(() -> searchTrees(0), "MCTSAgent ponderer");
+        ponderer.setDaemon(true); // never keep a finished game alive
+        ponderer.start();
+    }
+
+    /**
+     * Stops pondering, returning once the trees are no longer searched.
+     */
+    @Override
+    public void stopPondering() {
+        if (ponderer == null) {
+            return;
+        }
+        time.stop();
+        boolean interrupted = false;
+        while (ponderer.isAlive()) {
+            try {
+                ponderer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        ponderer = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -38,369 +388,661 @@ public class MCTSAgent extends Agent {
      *         is the position to move that piece to.
      **/
     public Position[] playMove(Board board) {
+        stopPondering();
+        time.start(board);
         agentTurn = board.getTurn();
-        long totalTime = 0;
-        long timeLimit = 200;
-        int nLoops = 0;
-        long averageTime = 0;
-        MonteCarloTree mct = new MonteCarloTree(board);
-        Position[][] moves = legalMoves(board);
-        for (Position[] move : moves) {
-            Board newBoard;
-            try {
-                newBoard = (Board) board.clone();
-                newBoard.move(move[0], move[1]);
-                if (newBoard.gameOver()) {
-                    if (newBoard.getWinner() == agentTurn) {
-                        return move;
-                    } else {
-                        continue;
-                    }
-                } else {
-                    continue;
-                }
-            } catch (ImpossiblePositionException | CloneNotSupportedException e) {
-            }
-
+        // a single legal move or a King to take needs no search
+        int forced = TimeManager.getForcedMove(board, moveBuffer);
+        if (forced != Move.NONE) {
+            return Move.toPositions(forced);
         }
 
-        MCTSNode bestNode = null;
-        while (timeLimit - totalTime > averageTime) {
-            long startTime = System.currentTimeMillis();
-            // Selection phase.
-            bestNode = mct.selectNode();
+        prepareTrees(board);
+        searchTrees(iterations);
 
-            // Expansion phase.
-            MCTSNode expandedNode = mct.expansionPhase(bestNode);
+        int bestNodeTest = getBestMove(board);
+        if (bestNodeTest != Move.NONE && board.isLegalMove(bestNodeTest)) {
+            return Move.toPositions(bestNodeTest);
+        } else {
+            int count = board.generateMoves(moveBuffer);
+            int randNum = random.nextInt(count);
 
-            // Simulation phase.
-            boolean won = mct.simulateGame(expandedNode);
+            return Move.toPositions(moveBuffer[randNum]);
+        }
+
+    }
 
-            // Back propogation phase.
-            mct.backPropagate(expandedNode, won);
-            long executionTime = System.currentTimeMillis() - startTime;
-            nLoops++;
-            totalTime += executionTime;
-            averageTime = totalTime / (long) nLoops;
+    /**
+     * Carries each tree over from the last search if it holds the given position,
+     * and otherwise restarts it from the position. The trees, each with its own
+     * random stream and buffers, are only created for the first search, so later
+     * moves allocate nothing.
+     * 
+     * @param board The position to search from
+     */
+    private void prepareTrees(Board board) {
+        for (int i = 0; i < threads; i++) {
+            boolean shared = i > 0 && parallelism == Parallelism.TREE;
+            if (trees[i] == null) {
+                trees[i] = shared ? new MonteCarloTree(trees[0], random.nextLong())
+                        : new MonteCarloTree(board, random.nextLong(), nodePools[i],
+                                tables == null ? null : tables[i]);
+            } else if (shared) {
+                // every thread searches from the first tree's root, with its own stream
+                trees[i].follow(trees[0]);
+            } else if (!trees[i].advance(board)) {
+                trees[i].restart(board);
+            }
         }
-        Position[] bestNodeTest = mct.getBestMove();
-        if (board.isLegalMove(bestNodeTest[0], bestNodeTest[1])) {
-            return bestNodeTest;
+        if (tables != null) {
+            for (TranspositionTable table : tables) {
+                table.nextSearch();
+            }
+        }
+    }
+
+    /**
+     * Searches every tree, on the worker threads if there is more than one.
+     * 
+     * @param iterations The number of simulations each tree runs, or 0 to search
+     *                   until the time manager stops the search
+     */
+    private void searchTrees(int iterations) {
+        if (pool == null) {
+            trees[0].search(iterations);
         } else {
-            Position[][] finalMoves = legalMoves(board);
-            Random random = new Random();
-            int randNum = random.nextInt(finalMoves.length);
+            List<Callable<Object>> workers = new ArrayList<>();
+            for (MonteCarloTree tree : trees) {
+                workers.add(Executors.callable(() -> tree.search(iterations)));
+            }
+            try {
+                pool.invokeAll(workers);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-            return new Position[] { finalMoves[randNum][0], finalMoves[randNum][1] };
+    /**
+     * Merges the visit and win counts of the root's children across all the trees,
+     * and picks the move with the best average reward. A move proven to win is picked
+     * at once, a move proven to end with another player losing scores DRAW, and
+     * moves proven to lose are only picked if nothing else is left. The moves and
+     * their statistics are merged in buffers held by the agent, so nothing is
+     * allocated.
+     * 
+     * @param board the current state of the game, at the root of every tree.
+     * @return the encoded best move, or Move.NONE if no tree has been searched.
+     */
+    private int getBestMove(Board board) {
+        int[] moves = rootMoves;
+        int count = board.generateMoves(moves);
+        int[] visits = rootVisits;
+        double[] wins = rootWins;
+        double[] proven = rootProven;
+        Arrays.fill(visits, 0, count, 0);
+        Arrays.fill(wins, 0, count, 0);
+        Arrays.fill(proven, 0, count, Double.NaN);
+        int total = 0;
+        for (MonteCarloTree tree : trees) {
+            NodePool nodes = tree.getPool();
+            if (tree != trees[0] && nodes == trees[0].getPool()) {
+                continue; // a shared tree is only counted once
+            }
+            int children = nodes.getChildCount(tree.getRoot());
+            int first = nodes.getFirstChild(tree.getRoot());
+            for (int child = first; child < first + children; child++) {
+                for (int i = 0; i < count; i++) {
+                    if (Move.getKey(moves[i]) == Move.getKey(nodes.getMove(child))) {
+                        Colour winner = nodes.getProvenWinner(child);
+                        if (winner == agentTurn) {
+                            return moves[i];
+                        }
+                        if (winner != null) {
+                            proven[i] = getProvenScore(nodes, child, agentTurn);
+                        }
+                        visits[i] += nodes.getVisits(child);
+                        wins[i] += nodes.getReward(child, agentTurn);
+                        total += nodes.getVisits(child);
+                        break;
+                    }
+                }
+            }
+        }
+        if (total == 0) {
+            return Move.NONE;
         }
 
+        int bestMove = Move.NONE;
+        double bestNodeScore = -1;
+        for (int i = 0; i < count; i++) {
+            double score;
+            if (!Double.isNaN(proven[i])) {
+                score = proven[i];
+            } else if (visits[i] != 0) {
+                score = wins[i] / visits[i];
+            } else {
+                score = 0;
+            }
+            if (score > bestNodeScore) {
+                bestMove = moves[i];
+                bestNodeScore = score;
+            }
+        }
+        return bestMove;
     }
 
     /**
-     * All legal moves that can be done from the current position
+     * Scores a proven node for a player choosing between it and its siblings: its
+     * reward, or below any other node if the player loses.
      * 
-     * @param board the current state of the game.
-     * @return a 2D array indicating all available moves.
+     * @param nodes  The pool holding the node
+     * @param node   The proven node
+     * @param player The player choosing the node
+     * @return The score, -0.5 if the player loses, as averaged rewards are at
+     *         least 0
      */
-    private Position[][] legalMoves(Board board) {
-        Position[] pieces = board.getPositions(board.getTurn()).toArray(new Position[0]);
-        Position[] spots = Position.values();
-        ArrayList<Position[]> moves = new ArrayList<>();
-        for (Position piece : pieces) {
-            for (Position spot : spots) {
-                Position[] current = new Position[] { piece, spot };
-                if (board.isLegalMove(piece, spot) && !moves.contains(current))
-                    moves.add(current);
-            }
-        }
-        return moves.toArray(new Position[0][0]);
+    private static double getProvenScore(NodePool nodes, int node, Colour player) {
+        return nodes.getProvenLoser(node) == player ? -0.5 : nodes.getProvenReward(node, player);
     }
 
     private class MonteCarloTree {
         /**
-         * A MonteCarloTree that performs search and holds the nodes
+         * A MonteCarloTree that performs search, holding its nodes in a NodePool.
+         * Nodes hold only the move that reaches them, so the tree keeps the board at
+         * its root, and each search replays the moves of a path from the root into a
+         * scratch copy of that board, taking them back again once the path has been
+         * simulated. Several trees may share a pool, each searched by its own
+         * thread: only one thread at a time adds a child to a node, and a visit is
+         * counted as soon as a thread selects a node (a virtual loss, until the
+         * result of its simulation is known) so concurrent threads spread out over
+         * different paths.
          */
 
-        private MCTSNode rootNode;
-
-        /**
-         * @param node Tree Root Node
-         */
-        public MonteCarloTree(MCTSNode node) {
-            rootNode = node;
-        }
+        private final NodePool pool;
+        // shares statistics between transpositions, or null
+        private final TranspositionTable table;
+        private int rootNode;
+        private Board rootBoard;
+        // each tree has its own random stream and move buffer, so trees can be
+        // searched on different threads
+        private final SplittableRandom random;
+        private final int[] moveBuffer = new int[Board.MAX_MOVES];
+        private final RolloutEngine rollouts;
+        // the number of moves played on the scratch board below the root
+        private int depth;
+        // marks the moves of the current simulation for RAVE, indexed by the
+        // colour ordinal of the player making them * MOVE_KEYS + move key, with
+        // the simulation's stamp, or null when searching without RAVE
+        private final int[] amafPlayed;
+        private int amafStamp;
+        // the result of a simulation reaching a proven node, by colour ordinal
+        private final double[] provenRewards = new double[COLOURS];
 
         /**
+         * Starts a new tree, reusing the nodes of a pool.
+         * 
          * @param board Root Node Board
+         * @param seed  Seed of this tree's random stream
+         * @param pool  The pool to hold the nodes, which is emptied
+         * @param table The table sharing statistics between transpositions, or
+         *              null for none
          */
-        public MonteCarloTree(Board board) {
-            this(new MCTSNode(board));
+        public MonteCarloTree(Board board, long seed, NodePool pool, TranspositionTable table) {
+            this.pool = pool;
+            this.table = table;
+            random = new SplittableRandom(seed);
+            rollouts = new RolloutEngine(random);
+            amafPlayed = raveEquivalence > 0 ? new int[COLOURS * MOVE_KEYS] : null;
+            restart(board);
         }
 
         /**
-         * Selection phase
+         * Creates a tree sharing the nodes of another, to be searched by another
+         * thread.
          * 
-         * @param MCTSNode Node to Select Optimal Child
-         * @return Optimal Child
+         * @param tree The tree whose nodes are shared
+         * @param seed Seed of this tree's random stream
          */
-        public MCTSNode selectNode(MCTSNode node) {
-            if (node.getChildren().size() == 0) {
-                return node;
-            }
-
-            MCTSNode bestNode = null;
-            double bestNodeScore = -1;
-            for (MCTSNode child : node.getChildren()) {
-                if (child.getUpperConfidenceBound() > bestNodeScore) {
-                    bestNode = child;
-                    bestNodeScore = child.getUpperConfidenceBound();
-                }
-            }
-            return selectNode(bestNode);
+        public MonteCarloTree(MonteCarloTree tree, long seed) {
+            pool = tree.pool;
+            table = tree.table;
+            random = new SplittableRandom(seed);
+            rollouts = new RolloutEngine(random);
+            amafPlayed = raveEquivalence > 0 ? new int[COLOURS * MOVE_KEYS] : null;
+            follow(tree);
         }
 
         /**
-         * Selection Phase
+         * Empties the pool, leaving only a root for a position.
          * 
-         * @return Optimal Child
+         * @param board Root Node Board
          */
-        public MCTSNode selectNode() {
-            return selectNode(rootNode);
-        }
-
-        public Position[] getBestMove() {
-            if (rootNode.getChildren().size() == 0) {
-                throw new IllegalStateException("MCTS has not been done yet");
-            }
-
-            MCTSNode bestNode = null;
-            double bestNodeScore = -1;
-            for (MCTSNode child : rootNode.getChildren()) {
-                double score;
-                if (child.getVisits() != 0) {
-                    score = (double) child.getWins() / child.getVisits();
-                } else {
-                    score = 0;
-                }
-                if (score > bestNodeScore) {
-                    bestNode = child;
-                    bestNodeScore = score;
-                }
-            }
-            return bestNode.getPlayedMove();
+        public void restart(Board board) {
+            rootNode = pool.reset();
+            pool.setPositionKey(rootNode, board.hashKey());
+            rootBoard = board;
         }
 
         /**
-         * Expands a node and appends all its children
+         * Moves the root to that of the tree whose nodes are shared.
          * 
-         * @param node The node to be expanded
+         * @param tree The tree whose nodes are shared
          */
-        public void expandNode(MCTSNode node) {
-            Board state = node.getState();
-            Position[][] moves = legalMoves(state);
-            // Get all valid moves and append them
-            for (Position[] move : moves) {
-                Board newBoard;
-                try {
-                    newBoard = (Board) node.getState().clone();
-                    newBoard.move(move[0], move[1]);
-                    node.appendChild(newBoard);
-                } catch (CloneNotSupportedException | ImpossiblePositionException e) {
-                }
-
-            }
+        public void follow(MonteCarloTree tree) {
+            rootNode = tree.rootNode;
+            rootBoard = tree.rootBoard;
         }
 
         /**
-         * Expansion Phase
-         * 
-         * @param node The node to be expanded
-         * @return Random child node
+         * @return An estimate of the bytes of heap held by the tree's own buffers,
+         *         not counting the nodes of its pool
          */
-        public MCTSNode expansionPhase(MCTSNode node) {
-            if (node.getState().gameOver())
-                return node;
-            else {
-                expandNode(node);
-                Random random = new Random();
-                List<MCTSNode> children = node.getChildren();
-                return children.get(random.nextInt(children.size()));
-            }
+        public long getMemoryUsage() {
+            long bytes = (long) Integer.BYTES * moveBuffer.length + rollouts.getMemoryUsage();
+            return amafPlayed == null ? bytes : bytes + (long) Integer.BYTES * amafPlayed.length;
         }
 
         /**
-         * Simulation Phase
+         * Grows the tree, running the selection, expansion, simulation and
+         * backpropagation phases until the time manager stops the search or the
+         * number of iterations is reached, or the root is proven. All phases work
+         * on one scratch copy of the root board, which is back at the root after
+         * every iteration.
          * 
-         * @param MCTSNode Node to simulate
-         * @return True if agent won, False if agent did not win
+         * @param iterations The number of simulations to run, or 0 to search until
+         *                   the time manager stops the search
          */
-        public boolean simulateGame(MCTSNode node) {
-            Board board = node.getState();
-            Colour playerTurn = board.getTurn();
-
-            while (board.gameOver() == false) {
-                Position[][] moves = legalMoves(board);
-                Random random = new Random();
-                int randNum = random.nextInt(moves.length);
-                try {
-                    board.move(moves[randNum][0], moves[randNum][1]);
-                } catch (ImpossiblePositionException e) {
+        public void search(int iterations) {
+            Board board;
+            try {
+                board = (Board) rootBoard.clone();
+            } catch (CloneNotSupportedException e) {
+                return;
+            }
+            int nLoops = 0;
+            while ((iterations > 0 ? nLoops < iterations : !isTimeUp(nLoops))
+                    && pool.getProvenWinner(rootNode) == null) {
+                // Selection and expansion phases, playing the path on the board.
+                int expandedNode = selectNode(board);
 
+                // Simulation phase, unless the result is already known.
+                boolean proven = pool.getProvenWinner(expandedNode) != null;
+                double[] rewards = proven ? getProvenRewards(expandedNode) : simulateGame(board);
+
+                // Back propogation phase.
+                backPropagate(expandedNode, rewards);
+                if (raveEquivalence > 0) {
+                    updateAmaf(board, expandedNode, rewards, proven ? 0 : rollouts.getPlayedCount());
                 }
-            }
 
-            if (board.getWinner() == playerTurn) {
-                return true;
-            } else {
-                return false;
+                // Take the path back, to start again from the root.
+                for (; depth > 0; depth--) {
+                    board.unmakeMove();
+                }
+                nLoops++;
             }
         }
 
         /**
-         * Performs the backpropagation phase Backpropagation Phase
-         *
-         * @param MCTSNode Node to backpropagate from
-         * @param boolean  outcome of the game
+         * Checks the time manager. The first tree reports the best move found so
+         * far every STABILITY_CHECK simulations, so that the search stops early once
+         * the move is settled, and the other trees stop when it does. A pondering
+         * search has no best move to report.
+         * 
+         * @param nLoops The number of simulations run so far
+         * @return True if the search should stop
          */
-        public void backPropagate(MCTSNode node, boolean outcome) {
-            node.incrementVisited();
-            if (outcome)
-                node.incrementWon();
-            while (node.hasParent()) {
-                node = node.getParent();
-                node.incrementVisited();
-                if (outcome)
-                    node.incrementWon();
+        private boolean isTimeUp(int nLoops) {
+            if (this != trees[0] || nLoops % STABILITY_CHECK != 0 || time.isPondering()) {
+                return time.isStopped();
             }
+            return time.shouldStop(getBestMove(rootBoard));
         }
-    }
 
-    private class MCTSNode {
-        private int nVisits;
-        private int nWins;
-        private MCTSNode parent;
-        private List<MCTSNode> children;
-        private Board board;
+        /**
+         * @return The pool holding the nodes of the tree
+         */
+        public NodePool getPool() {
+            return pool;
+        }
 
         /**
-         * @param parent The parent of this node.
-         * @param state  The gamestate this node represents
+         * @return The root node of the tree
          */
-        public MCTSNode(MCTSNode parent, Board board) {
-            this.parent = parent;
-            this.board = board;
-            nVisits = 0;
-            nWins = 0;
-            children = new ArrayList<MCTSNode>();
+        public int getRoot() {
+            return rootNode;
         }
 
         /**
-         * Creates root node
+         * Selection and expansion phases. Descends from the root through the child
+         * with the best upper confidence bound, until reaching a node with moves
+         * not yet tried, where one new child is added, a proven node, or the end
+         * of the game. A child proven won by the player to move is always taken, a
+         * child proven won by another player scores the reward of the player to
+         * move, and children proven lost by the player to move are only taken when
+         * nothing else is left.
          * 
-         * @param state State this node represents
+         * @param board The game state at the root, on which the moves of the path
+         *              are played
+         * @return The node at the end of the path
          */
-        // public MCTSNode(GameState state) {
-        public MCTSNode(Board board) {
-            // this(null, state);
-            this(null, board);
+        public int selectNode(Board board) {
+            int node = rootNode;
+            countVisit(node); // virtual loss, until backPropagate adds the result
+            while (!board.gameOver() && pool.getProvenWinner(node) == null) {
+                if (!pool.isFullyExpanded(node)) {
+                    int child = pool.expand(node, board, random, moveBuffer);
+                    if (child != NodePool.NONE) {
+                        play(board, child);
+                        if (board.gameOver() && board.getWinner() != null) {
+                            prove(board, child);
+                        }
+                        return child;
+                    }
+                }
+                // each player chooses by their own rewards (max^n)
+                Colour turn = board.getTurn();
+                int bestNode = NodePool.NONE;
+                double bestNodeScore = -1;
+                int entry = getTransposition(node);
+                double lnt = Math.log(entry == TranspositionTable.NONE ? pool.getVisits(node) : table.getVisits(entry));
+                int children = pool.getChildCount(node);
+                int first = pool.getFirstChild(node);
+                for (int child = first; child < first + children; child++) {
+                    Colour winner = pool.getProvenWinner(child);
+                    if (winner == turn) {
+                        bestNode = child;
+                        break;
+                    }
+                    double score = winner == null ? getUpperConfidenceBound(child, turn, lnt)
+                            : getProvenScore(pool, child, turn);
+                    if (score > bestNodeScore) {
+                        bestNode = child;
+                        bestNodeScore = score;
+                    }
+                }
+                if (bestNode == NodePool.NONE) {
+                    break; // no piece can move, or no room for more nodes
+                }
+                node = play(board, bestNode);
+            }
+            return node;
         }
 
         /**
          * Upper Confidence Bound Formula
          * 
-         * @return The UCB value of this node
+         * @param node   The node
+         * @param player The player choosing the node, the player to move at its
+         *               parent
+         * @param lnt    The log of the number of visits to the node's parent
+         * @return The UCB value of this node for the player
          */
-        public double getUpperConfidenceBound() {
+        private double getUpperConfidenceBound(int node, Colour player, double lnt) {
+            int nVisits = pool.getVisits(node);
+            double nWins = pool.getReward(node, player);
+            int entry = getTransposition(node);
+            if (entry != TranspositionTable.NONE) {
+                nVisits = table.getVisits(entry);
+                nWins = table.getReward(entry, player);
+            }
             double winScore;
             if (nVisits != 0) {
-                winScore = (double) nWins / nVisits;
+                winScore = nWins / nVisits;
             } else {
                 winScore = 0;
             }
+            int amafVisits = pool.getAmafVisits(node);
+            if (raveEquivalence > 0 && amafVisits > 0) {
+                double beta = Math.sqrt(raveEquivalence / (3.0 * nVisits + raveEquivalence));
+                winScore = (1 - beta) * winScore + beta * pool.getAmafReward(node) / amafVisits;
+            }
 
             // double c = 1/Math.sqrt(2);
             double c = 1.0;
-            double lnt = Math.log(parent.getVisits());
             double ucb = winScore + c * Math.sqrt(lnt / nVisits);
             return ucb;
         }
 
         /**
-         * @return The number of times this node has been visited
+         * @return The table entry of a node's position, if it has been visited more
+         *         often than the node itself through its transpositions, and
+         *         otherwise NONE
          */
-        public int getVisits() {
-            return nVisits;
+        private int getTransposition(int node) {
+            if (table == null) {
+                return TranspositionTable.NONE;
+            }
+            int entry = table.find(pool.getPositionKey(node));
+            if (entry != TranspositionTable.NONE && table.getVisits(entry) <= pool.getVisits(node)) {
+                return TranspositionTable.NONE;
+            }
+            return entry;
         }
 
         /**
-         * @return The number of simulated games this node has won
+         * Counts a visit to a node, and to its position in the table.
          */
-        public int getWins() {
-            return nWins;
+        private void countVisit(int node) {
+            pool.incrementVisited(node);
+            if (table != null) {
+                table.incrementVisited(table.findOrAdd(pool.getPositionKey(node)));
+            }
         }
 
         /**
-         * @return This node's parent
+         * Marks a node whose move ended the game as proven won by the player who
+         * took the King and lost by the player whose King was taken, and proves
+         * the nodes above it that this decides: a node whose player to move has a
+         * child they are certain to win, and a node whose children are all proven,
+         * where the outcome best for the player to move is certain.
+         *
+         * @param board The finished game, at the node's position
+         * @param node  The node
          */
-        public MCTSNode getParent() {
-            return parent;
+        private void prove(Board board, int node) {
+            pool.setProven(node, board.getWinner(), board.getLoser());
+            int turn = board.getTurn().ordinal();
+            while (node != rootNode) {
+                int parent = pool.getParent(node);
+                turn = (turn + COLOURS - 1) % COLOURS; // the player to move at the parent
+                Colour mover = COLOUR_VALUES[turn];
+                int decided = pool.getProvenWinner(node) == mover ? node : getDecidingChild(parent, mover);
+                if (decided == NodePool.NONE) {
+                    return;
+                }
+                pool.setProven(parent, pool.getProvenWinner(decided), pool.getProvenLoser(decided));
+                node = parent;
+            }
         }
 
         /**
-         * @return True if this node has a parent. False if this is the root node.
+         * @param node  The node
+         * @param mover The player to move at the node
+         * @return The child whose outcome the player to move will choose, if the
+         *         node has a child for every legal move, all proven, and the
+         *         children best for the player all end the same way, and otherwise
+         *         NONE
          */
-        public boolean hasParent() {
-            return getParent() != null;
+        private int getDecidingChild(int node, Colour mover) {
+            if (!pool.isFullyExpanded(node)) {
+                return NodePool.NONE;
+            }
+            int best = NodePool.NONE;
+            double bestReward = -1;
+            boolean tied = false; // between children best for the mover that end differently
+            int children = pool.getChildCount(node);
+            int first = pool.getFirstChild(node);
+            for (int child = first; child < first + children; child++) {
+                if (pool.getProvenWinner(child) == null) {
+                    return NodePool.NONE;
+                }
+                double reward = pool.getProvenReward(child, mover);
+                if (reward > bestReward) {
+                    best = child;
+                    bestReward = reward;
+                    tied = false;
+                } else if (reward == bestReward && !pool.isSameOutcome(child, best)) {
+                    tied = true;
+                }
+            }
+            return tied ? NodePool.NONE : best;
         }
 
         /**
-         * @return A list of this node's children
+         * @return The result of every simulation from a proven node
          */
-        public List<MCTSNode> getChildren() {
-            return children;
+        private double[] getProvenRewards(int node) {
+            RolloutEngine.setOutcome(pool.getProvenWinner(node), pool.getProvenLoser(node), provenRewards);
+            return provenRewards;
         }
 
         /**
-         * @return The board of this node
+         * Plays the move of a node on the board, and counts a visit to it.
+         * 
+         * @return The node
          */
-        public Board getState() {
-            return board;
+        private int play(Board board, int node) {
+            try {
+                board.makeMove(pool.getMove(node));
+                depth++;
+            } catch (ImpossiblePositionException e) {
+            }
+            pool.setPositionKey(node, board.hashKey());
+            countVisit(node); // virtual loss, as for the root
+            return node;
         }
 
         /**
-         * Increment this node's win count
+         * Moves the root down to the node reached by the moves played since it was
+         * the root (our move, then the replies of the other players), keeping that
+         * node's statistics and subtree and compacting them to the start of the pool,
+         * so the rest of the pool is reused. If the subtree fills more than half
+         * the pool, the subtrees of its least visited nodes are dropped, raising the
+         * visits a node needs to keep its children until it fits.
+         * 
+         * @param board The current game state
+         * @return True if the tree now has the current game state at its root, False
+         *         if it holds no node for it and a new tree is needed
          */
-        public void incrementWon() {
-            nWins++;
+        public boolean advance(Board board) {
+            int node = rootNode;
+            int moveCount = rootBoard.getMoveCount();
+            if (board.getMoveCount() < moveCount) {
+                return false; // a new game
+            }
+            for (int i = moveCount; i < board.getMoveCount() && node != NodePool.NONE; i++) {
+                int played = Move.getKey(board.getEncodedMove(i));
+                int next = NodePool.NONE;
+                int children = pool.getChildCount(node);
+                int first = pool.getFirstChild(node);
+                for (int child = first; child < first + children; child++) {
+                    if (Move.getKey(pool.getMove(child)) == played) {
+                        next = child;
+                        break;
+                    }
+                }
+                node = next;
+            }
+            // the positions must agree, in case the moves were played in another game
+            if (node == NodePool.NONE || !reaches(board, moveCount)) {
+                return false;
+            }
+            rootNode = pool.compact(node);
+            int limit = pool.getCapacity() / 2;
+            for (int minVisits = 2; pool.getSize() > limit && minVisits > 0
+                    && minVisits <= pool.getVisits(rootNode); minVisits *= 2) {
+                rootNode = pool.compact(rootNode, minVisits);
+            }
+            rootBoard = board;
+            return true;
         }
 
         /**
-         * Increment this node's visited count
+         * @return True if playing the moves of the board from the given move on the
+         *         root's board reaches the board's position.
          */
-        public void incrementVisited() {
-            nVisits++;
+        private boolean reaches(Board board, int moveCount) {
+            try {
+                Board replay = (Board) rootBoard.clone();
+                for (int i = moveCount; i < board.getMoveCount(); i++) {
+                    replay.move(board.getEncodedMove(i), 0);
+                }
+                return replay.hashKey() == board.hashKey();
+            } catch (CloneNotSupportedException | ImpossiblePositionException e) {
+                return false;
+            }
         }
 
         /**
-         * Add a child to this node.
+         * Simulation Phase
          * 
-         * @param state The gamestate to build the child node from
+         * @param board The game state to simulate from, which the rollout engine
+         *              restores before returning
+         * @return The reward of each player, indexed by colour ordinal: WIN, DRAW
+         *         or LOSS of RolloutEngine for a finished game, or estimated from
+         *         the scores if the rollout was cut off
          */
-        public void appendChild(Board board) {
-            MCTSNode node = new MCTSNode(this, board);
-            children.add(node);
+        public double[] simulateGame(Board board) {
+            return rollouts.playOut(board, rolloutDepth, rolloutPolicy);
         }
 
         /**
-         * The move that got to this node
-         * 
-         * @return The card played to create this node from its parent.
+         * Performs the backpropagation phase Backpropagation Phase. Every node on
+         * the path adds the reward of every player, so the simulation informs the
+         * choices of all three players. The visits were already counted on the way
+         * down, so only rewards are added, to the nodes and to their positions in
+         * the table.
+         *
+         * @param node    Node to backpropagate from
+         * @param rewards the reward each player scored, by colour ordinal
          */
-        public Position[] getPlayedMove() {
+        public void backPropagate(int node, double[] rewards) {
+            for (; node != NodePool.NONE; node = pool.getParent(node)) {
+                pool.addRewards(node, rewards);
+                if (table != null) {
+                    int entry = table.find(pool.getPositionKey(node));
+                    if (entry != TranspositionTable.NONE) {
+                        table.addRewards(entry, rewards);
+                    }
+                }
+            }
+        }
 
-            int moveCount = board.getMoveCount();
-            Position[] move = board.getMove(moveCount - 1);
-            return move;
+        /**
+         * Adds a simulation to the AMAF statistics of the tree. At each node on the
+         * path, every child whose move the player to move there made at any later
+         * point of the simulation, in the tree or in the rollout, is counted.
+         *
+         * @param board        The game state at the end of the path
+         * @param node         The node at the end of the path
+         * @param rewards      the reward each player scored, by colour ordinal
+         * @param rolloutMoves The number of moves of the rollout, 0 if none was
+         *                     played
+         */
+        private void updateAmaf(Board board, int node, double[] rewards, int rolloutMoves) {
+            int stamp = ++amafStamp;
+            int turn = board.getTurn().ordinal();
+            for (int i = 0; i < rolloutMoves; i++) {
+                int mover = (turn + i) % COLOURS;
+                amafPlayed[mover * MOVE_KEYS + Move.getKey(rollouts.getPlayedMove(i))] = stamp;
+            }
+            // walk back up the path, the player to move at each parent being the
+            // player before the one to move at its child
+            while (node != rootNode) {
+                int parent = pool.getParent(node);
+                turn = (turn + COLOURS - 1) % COLOURS;
+                amafPlayed[turn * MOVE_KEYS + Move.getKey(pool.getMove(node))] = stamp;
+                int children = pool.getChildCount(parent);
+                int first = pool.getFirstChild(parent);
+                for (int child = first; child < first + children; child++) {
+                    if (amafPlayed[turn * MOVE_KEYS + Move.getKey(pool.getMove(child))] == stamp) {
+                        pool.addAmaf(child, rewards[turn]);
+                    }
+                }
+                node = parent;
+            }
         }
     }
 
@@ -12,6 +12,11 @@ import java.util.*;
 
 public class MaxNAgent extends Agent {
     private static final String name = "MaxNAgent";
+    // the deepest search tried, however much time is left
+    private static final int MAX_DEPTH = 6;
+    // decides how deep to search, by when each depth is done
+    private final TimeManager time = new TimeManager();
+    private final int[] moveBuffer = new int[Board.MAX_MOVES];
 
     /**
      * A no argument constructor, required for tournament management.
@@ -31,22 +36,41 @@ public class MaxNAgent extends Agent {
      *         is the position to move that piece to.
      **/
     public Position[] playMove(Board board) {
+        time.start(board);
+        // a single legal move or a King to take needs no search
+        int forced = TimeManager.getForcedMove(board, moveBuffer);
+        if (forced != Move.NONE) {
+            return Move.toPositions(forced);
+        }
         // get maximising player's turn
         Colour playerColour = board.getTurn();
-        List<Object[]> result = maxNSearch(board, 2, 2); // set depth of 2
-        Object finalResult[] = {};
-        for (Object[] res : result) {
-            if ((Colour) res[0] == playerColour) {
-                finalResult = res;
+        // search one ply deeper at a time, keeping the move of the deepest search
+        // finished before the time manager stops
+        Position[] bestMove = null;
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            List<Object[]> result = maxNSearch(board, depth, depth);
+            if (depth > 0 && time.isStopped()) {
+                break; // the search was cut off
+            }
+            Object finalResult[] = {};
+            for (Object[] res : result) {
+                if ((Colour) res[0] == playerColour) {
+                    finalResult = res;
+                    break;
+                }
+            }
+            bestMove = new Position[] { (Position) finalResult[1], (Position) finalResult[2] };
+            if (time.shouldStop(Move.encode(bestMove))) {
                 break;
             }
         }
-        return new Position[] { (Position) finalResult[1], (Position) finalResult[2] };
+        return bestMove;
     }
 
     /**
      * Implement MaxN algorithm which assumes that every player will try to make
-     * their best move.
+     * their best move. Searches deeper than a depth of 0 return at once when the
+     * time manager stops, with an incomplete result.
      * 
      * @author Jonathan Neo (21683439)
      * @param board      the chess board
@@ -56,10 +80,12 @@ public class MaxNAgent extends Agent {
      *         best score
      */
     public List<Object[]> maxNSearch(Board board, int depth, int startDepth) {
-        // get positions for the specified player
-        Position[] occupiedPositions = board.getPositions(board.getTurn()).toArray(new Position[0]);
-        Position start = occupiedPositions[0];
-        Position end = occupiedPositions[0];
+        // the player to move, saved as the board is changed in place by the search below
+        Colour turn = board.getTurn();
+        // the player's pieces are read from the board's piece list, which the search
+        // below leaves in the same order after each move is unmade
+        Position start = board.getPieceLocation(turn, 0);
+        Position end = start;
 
         ArrayList<Object[]> best = new ArrayList<>();
         for (Colour colour : Colour.values()) {
@@ -68,88 +94,79 @@ public class MaxNAgent extends Agent {
         }
 
         // for each of the player's piece on the board...
-        for (Position position : occupiedPositions) {
-            start = position;
+        for (int index = 0; index < board.getPieceCount(turn); index++) {
+            start = board.getPieceLocation(turn, index);
             end = start;
             Piece piece = board.getPiece(start); // get the piece occupying the position
 
-            Direction[][] steps = piece.getType().getSteps(); // get the type and steps that the piece can move
-
-            // for each step the piece can take...
-            for (Direction[] step : steps) {
-                // get number of repetitions of steps the piece can take
-                int maxReps = piece.getType().getStepReps();
+            // for each ray of positions the piece can move along...
+            for (Position[] ray : MoveTable.getRays(piece, start)) {
 
-                // for each repitition option...
-                for (int reps = 1; reps <= maxReps; reps++) {
-
-                    // get end position
-                    for (int i = 0; i < reps; i++) {
-                        try {
-                            end = board.step(piece, step, end, start.getColour() != end.getColour());
-                        } catch (ImpossiblePositionException e) {
-                            // ignore the position
-                        }
-                    }
+                // for each end position, stopping after the first occupied position...
+                for (int reps = 0; reps < ray.length && (reps == 0 || board.getPiece(ray[reps - 1]) == null); reps++) {
+                    end = ray[reps];
 
                     // if move is legal
                     if (board.isLegalMove(start, end)) {
+                        if (startDepth > 0 && time.isStopped()) {
+                            return best;
+                        }
                         try {
-                            Board b = (Board) board.clone(); // copy board
-                            b.move(start, end);
-
-                            // check for checkmate
-                            if (depth == startDepth) {
-                                if (b.gameOver()) {
-                                    if (b.getWinner() == board.getTurn()) {
-                                        for (int i = 0; i < best.size(); i++) {
-                                            if ((Colour) best.get(i)[0] == board.getTurn()) {
-                                                Object[] winningScore = { board.getTurn(), start, end,
-                                                        Integer.MAX_VALUE };
-                                                best.set(i, winningScore);
+                            board.makeMove(start, end); // play the move in place, instead of on a copy
+                            try {
+                                // check for checkmate
+                                if (depth == startDepth) {
+                                    if (board.gameOver()) {
+                                        if (board.getWinner() == turn) {
+                                            for (int i = 0; i < best.size(); i++) {
+                                                if ((Colour) best.get(i)[0] == turn) {
+                                                    Object[] winningScore = { turn, start, end,
+                                                            Integer.MAX_VALUE };
+                                                    best.set(i, winningScore);
+                                                }
                                             }
+                                            return best;
+                                        } else {
+                                            continue; // skip this move if it can cause me to lose
                                         }
-                                        return best;
-                                    } else {
-                                        continue; // skip this move if it can cause me to lose
                                     }
                                 }
-                            }
 
-                            // if game end
-                            List<Object[]> evaluatedScore;
-                            if (depth == 0 || b.gameOver()) {
-                                evaluatedScore = evaluate(b, start, end);
-                            }
+                                // if game end
+                                List<Object[]> evaluatedScore;
+                                if (depth == 0 || board.gameOver()) {
+                                    evaluatedScore = evaluate(board, start, end);
+                                }
 
-                            // maximising player
-                            else {
-                                evaluatedScore = maxNSearch(b, depth - 1, startDepth);
-                            }
+                                // maximising player
+                                else {
+                                    evaluatedScore = maxNSearch(board, depth - 1, startDepth);
+                                }
 
-                            // find best move for current player
-                            for (Object[] newScore : evaluatedScore) {
-                                if (((Colour) newScore[0] == board.getTurn())) {
-                                    // compare against best scores
-                                    for (int i = 0; i < best.size(); i++) {
-                                        Object[] bestScore = best.get(i);
-                                        if ((Colour) bestScore[0] == board.getTurn()) {
-                                            // if new score is greater than current best score
-                                            if ((int) newScore[3] > (int) bestScore[3]) {
-                                                // update best score
-                                                for (int j = 0; j < evaluatedScore.size(); j++) {
-                                                    Object[] newBest = { evaluatedScore.get(j)[0], start, end,
-                                                            evaluatedScore.get(j)[3] };
-                                                    best.set(j, newBest);
+                                // find best move for current player
+                                for (Object[] newScore : evaluatedScore) {
+                                    if (((Colour) newScore[0] == turn)) {
+                                        // compare against best scores
+                                        for (int i = 0; i < best.size(); i++) {
+                                            Object[] bestScore = best.get(i);
+                                            if ((Colour) bestScore[0] == turn) {
+                                                // if new score is greater than current best score
+                                                if ((int) newScore[3] > (int) bestScore[3]) {
+                                                    // update best score
+                                                    for (int j = 0; j < evaluatedScore.size(); j++) {
+                                                        Object[] newBest = { evaluatedScore.get(j)[0], start, end,
+                                                                evaluatedScore.get(j)[3] };
+                                                        best.set(j, newBest);
+                                                    }
                                                 }
                                             }
                                         }
+                                        break; // found match
                                     }
-                                    break; // found match
                                 }
+                            } finally {
+                                board.unmakeMove(); // take the move back before trying the next one
                             }
-                        } catch (CloneNotSupportedException e) {
-                            System.out.println("cloning of board is not supported.");
                         } catch (ImpossiblePositionException e) {
                             System.out
                                     .println("piece cannot move from: " + start.toString() + ", to: " + end.toString());
@@ -0,0 +1,437 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An arena holding the nodes of a Monte Carlo search tree in parallel primitive
+ * arrays, indexed by node, so that growing the tree allocates nothing. The pool
+ * is allocated once, reset when a new tree is started, and compacted when the
+ * tree is carried over to the next move. Its capacity bounds the memory of the
+ * tree: once full, nodes are no longer expanded, and compacting can collapse
+ * the subtrees of rarely visited nodes to free their slots.
+ *
+ * The children of a node occupy a contiguous block, reserved with one slot per
+ * legal move the first time the node is expanded. The first childCount slots are
+ * the children added so far, and the rest hold the moves not yet tried in their
+ * move entry, so untried moves need no storage of their own. Children always
+ * have higher indices than their parent.
+ *
+ * Every node has a visit count and a reward for each colour: the sum of the
+ * player's rewards (see RolloutEngine) over the simulations through the node,
+ * held as fixed point numbers, as rewards may be fractions. For RAVE, every node also has
+ * all-moves-as-first (AMAF) statistics: the visits and reward, for the player
+ * making the node's move, of the simulations through its parent in which that
+ * player made the move at any later point. A node may also be proven, when
+ * the winner and the loser of the game from its position are known for certain. Visits, rewards and child counts
+ * are read and written atomically, so several threads may search one pool. A
+ * thread expands a node only after claiming it with a compare-and-set, and
+ * reserves a block of children by advancing the size of the pool with another,
+ * so expansion takes no lock. Only one thread may reset or compact the pool,
+ * while no other thread is searching it.
+ */
+final class NodePool {
+
+    /** Marks the absence of a node, such as the parent of the root */
+    static final int NONE = -1;
+    // the number of colours, and so of rewards per node
+    private static final int COLOURS = Colour.values().length;
+    /** The bytes of heap held for each node of capacity, by the arrays below */
+    static final int BYTES_PER_NODE = 10 * Integer.BYTES + (2 + COLOURS) * Long.BYTES;
+    private static final Colour[] COLOUR_VALUES = Colour.values();
+    // the fixed point scale of rewards
+    private static final double REWARD_SCALE = 1 << 16;
+
+    private final int capacity;
+    private final int[] parent;
+    private final int[] firstChild;
+    // the number of legal moves, and so the size of the child block, once expanded
+    private final int[] moveCount;
+    private final int[] move;
+    // the hash key of the position of each node, once the node has been played
+    private final long[] positionKey;
+    private final AtomicIntegerArray childCount;
+    private final AtomicIntegerArray visits;
+    // the rewards of each node, COLOURS per node, indexed by node * COLOURS +
+    // colour ordinal
+    private final AtomicLongArray rewards;
+    // the AMAF statistics of each node, for the player to move at its parent
+    private final AtomicIntegerArray amafVisits;
+    private final AtomicLongArray amafRewards;
+    // the proven outcome of each node, winner ordinal * (COLOURS + 1) + loser
+    // ordinal (COLOURS for no loser), or NONE
+    private final AtomicIntegerArray provenOutcome;
+    // 1 while a thread is expanding a node, otherwise 0
+    private final AtomicIntegerArray claimed;
+    // scratch space for compact
+    private final int[] remap;
+    // the number of slots in use
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity The number of nodes the pool can hold
+     */
+    NodePool(int capacity) {
+        this.capacity = capacity;
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        moveCount = new int[capacity];
+        move = new int[capacity];
+        positionKey = new long[capacity];
+        childCount = new AtomicIntegerArray(capacity);
+        visits = new AtomicIntegerArray(capacity);
+        rewards = new AtomicLongArray(capacity * COLOURS);
+        amafVisits = new AtomicIntegerArray(capacity);
+        amafRewards = new AtomicLongArray(capacity);
+        provenOutcome = new AtomicIntegerArray(capacity);
+        claimed = new AtomicIntegerArray(capacity);
+        remap = new int[capacity];
+    }
+
+    /**
+     * Empties the pool, leaving only a new root node.
+     *
+     * @return The index of the root
+     */
+    int reset() {
+        size.set(1);
+        allocate(0, NONE, Move.NONE);
+        return 0;
+    }
+
+    /** Initialises a reserved slot as a node with no children. */
+    private void allocate(int node, int parentNode, int playedMove) {
+        parent[node] = parentNode;
+        firstChild[node] = NONE;
+        moveCount[node] = 0;
+        move[node] = playedMove;
+        childCount.set(node, 0);
+        visits.set(node, 0);
+        for (int c = 0; c < COLOURS; c++) {
+            rewards.set(node * COLOURS + c, 0);
+        }
+        amafVisits.set(node, 0);
+        amafRewards.set(node, 0);
+        provenOutcome.set(node, NONE);
+        claimed.set(node, 0);
+    }
+
+    /**
+     * @return The number of nodes the pool can hold
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of slots in use, including the slots reserved for
+     *         children not yet added
+     */
+    int getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return The parent of a node, or NONE for the root
+     */
+    int getParent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * @return The encoded move that reaches a node from its parent
+     */
+    int getMove(int node) {
+        return move[node];
+    }
+
+    /**
+     * @return The Board.hashKey of a node's position, as last set
+     */
+    long getPositionKey(int node) {
+        return positionKey[node];
+    }
+
+    /**
+     * Records the Board.hashKey of a node's position, for transpositions.
+     */
+    void setPositionKey(int node, long key) {
+        positionKey[node] = key;
+    }
+
+    /**
+     * @return The index of the first child of a node, valid once it has children.
+     *         Another thread's children are only seen once getChildCount has been
+     *         read, so read that first.
+     */
+    int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    /**
+     * @return The number of children added to a node so far
+     */
+    int getChildCount(int node) {
+        return childCount.get(node);
+    }
+
+    /**
+     * @return True once a node has a child for every legal move
+     */
+    boolean isFullyExpanded(int node) {
+        int children = childCount.get(node); // read first, it publishes moveCount
+        return children > 0 && children == moveCount[node];
+    }
+
+    /**
+     * @return The number of times a node has been visited
+     */
+    int getVisits(int node) {
+        return visits.get(node);
+    }
+
+    /**
+     * @return The sum of a player's rewards over the simulated games through a
+     *         node
+     */
+    double getReward(int node, Colour colour) {
+        return rewards.get(node * COLOURS + colour.ordinal()) / REWARD_SCALE;
+    }
+
+    /**
+     * Increment a node's visited count
+     */
+    void incrementVisited(int node) {
+        visits.incrementAndGet(node);
+    }
+
+    /**
+     * Adds the result of a simulation to a node's rewards
+     *
+     * @param reward The reward of each player, indexed by colour ordinal
+     */
+    void addRewards(int node, double[] reward) {
+        for (int c = 0; c < COLOURS; c++) {
+            if (reward[c] != 0) {
+                rewards.addAndGet(node * COLOURS + c, Math.round(reward[c] * REWARD_SCALE));
+            }
+        }
+    }
+
+    /**
+     * @return The number of simulations through a node's parent in which the
+     *         node's move was made by the player to move at the parent
+     */
+    int getAmafVisits(int node) {
+        return amafVisits.get(node);
+    }
+
+    /**
+     * @return The reward of the player to move at a node's parent, over the
+     *         simulations counted by getAmafVisits
+     */
+    double getAmafReward(int node) {
+        return amafRewards.get(node) / REWARD_SCALE;
+    }
+
+    /**
+     * Adds a simulation to a node's AMAF statistics
+     *
+     * @param reward The reward of the player to move at the node's parent
+     */
+    void addAmaf(int node, double reward) {
+        amafVisits.incrementAndGet(node);
+        if (reward != 0) {
+            amafRewards.addAndGet(node, Math.round(reward * REWARD_SCALE));
+        }
+    }
+
+    /**
+     * @return The player certain to win from a node's position, or null if the
+     *         node is not proven
+     */
+    Colour getProvenWinner(int node) {
+        int outcome = provenOutcome.get(node);
+        return outcome == NONE ? null : COLOUR_VALUES[outcome / (COLOURS + 1)];
+    }
+
+    /**
+     * @return The player certain to lose their King from a node's position, or
+     *         null if the node is not proven or nobody loses
+     */
+    Colour getProvenLoser(int node) {
+        int outcome = provenOutcome.get(node);
+        return outcome == NONE || outcome % (COLOURS + 1) == COLOURS ? null
+                : COLOUR_VALUES[outcome % (COLOURS + 1)];
+    }
+
+    /**
+     * @return True if two nodes are proven to end the same way
+     */
+    boolean isSameOutcome(int node, int other) {
+        return provenOutcome.get(node) == provenOutcome.get(other);
+    }
+
+    /**
+     * @return A player's reward from a proven node, WIN, DRAW or LOSS of
+     *         RolloutEngine
+     */
+    double getProvenReward(int node, Colour colour) {
+        return colour == getProvenWinner(node) ? RolloutEngine.WIN
+                : colour == getProvenLoser(node) ? RolloutEngine.LOSS : RolloutEngine.DRAW;
+    }
+
+    /**
+     * Marks a node as proven: the game from its position is won by one player
+     * and lost by another whatever is played.
+     *
+     * @param loser The player losing their King, or null if nobody does
+     */
+    void setProven(int node, Colour winner, Colour loser) {
+        provenOutcome.set(node, winner.ordinal() * (COLOURS + 1) + (loser == null ? COLOURS : loser.ordinal()));
+    }
+
+    /**
+     * Adds a child to a node for one of its untried moves, chosen at random. The
+     * first time a node is expanded its legal moves are generated, and a block of
+     * slots is reserved for its children. A thread finding the node claimed by
+     * another does not wait, but gets NONE, and can simulate from the node.
+     *
+     * @param node   The node to expand
+     * @param board  The game state the node represents
+     * @param random The random stream of the calling thread
+     * @param buffer A move buffer of Board.MAX_MOVES owned by the calling thread
+     * @return The new child, or NONE if every move has been tried, another
+     *         thread is expanding the node, or the pool has no room for the
+     *         children
+     */
+    int expand(int node, Board board, SplittableRandom random, int[] buffer) {
+        if (!claimed.compareAndSet(node, 0, 1)) {
+            return NONE;
+        }
+        try {
+            if (firstChild[node] == NONE && !reserveChildren(node, board, buffer)) {
+                return NONE;
+            }
+            int children = childCount.get(node);
+            int n = moveCount[node];
+            if (children == n) {
+                return NONE;
+            }
+            int first = firstChild[node];
+            int pick = first + children + random.nextInt(n - children);
+            int child = first + children;
+            int tried = move[pick];
+            move[pick] = move[child];
+            move[child] = tried;
+            childCount.set(node, children + 1); // publishes the child to other threads
+            return child;
+        } finally {
+            claimed.set(node, 0);
+        }
+    }
+
+    /**
+     * Generates the legal moves of a claimed node, and reserves a block of slots
+     * holding them, by advancing the size of the pool.
+     *
+     * @return False if there are no moves, or no room for them
+     */
+    private boolean reserveChildren(int node, Board board, int[] buffer) {
+        int n = board.generateMoves(buffer);
+        int first;
+        do {
+            first = size.get();
+            if (n == 0 || first + n > capacity) {
+                return false;
+            }
+        } while (!size.compareAndSet(first, first + n));
+        for (int i = 0; i < n; i++) {
+            allocate(first + i, node, buffer[i]);
+        }
+        moveCount[node] = n;
+        firstChild[node] = first;
+        return true;
+    }
+
+    /**
+     * Keeps only the subtree below a node, which becomes the root, moving its nodes
+     * to the start of the pool in the same order, so the rest of the pool can be
+     * reused.
+     *
+     * @param root The node to keep, with its subtree
+     * @return The new index of the root, which is 0
+     */
+    int compact(int root) {
+        return compact(root, 0);
+    }
+
+    /**
+     * Keeps only the subtree below a node, as compact(root) does, also dropping
+     * the children of every node below the root visited fewer than minVisits
+     * times. Such a node keeps its own statistics, and becomes a leaf to be
+     * expanded again.
+     *
+     * @param root      The node to keep, with its subtree
+     * @param minVisits The visits a node below the root needs to keep its
+     *                  children
+     * @return The new index of the root, which is 0
+     */
+    int compact(int root, int minVisits) {
+        // children follow their parents, so one pass in index order finds the
+        // subtree
+        int end = size.get();
+        for (int i = root; i < end; i++) {
+            remap[i] = i == root ? 0 : NONE;
+        }
+        for (int i = root; i < end; i++) {
+            if (remap[i] != NONE && keepsChildren(i, root, minVisits)) {
+                for (int c = firstChild[i]; c < firstChild[i] + moveCount[i]; c++) {
+                    remap[c] = 0;
+                }
+            }
+        }
+        // every kept node moves to a lower (or the same) index, so nodes can be
+        // moved in place
+        int kept = 0;
+        for (int i = root; i < end; i++) {
+            if (remap[i] == NONE) {
+                continue;
+            }
+            int j = kept++;
+            boolean leaf = !keepsChildren(i, root, minVisits);
+            remap[i] = j;
+            parent[j] = i == root ? NONE : remap[parent[i]];
+            firstChild[j] = leaf ? NONE : firstChild[i];
+            moveCount[j] = leaf ? 0 : moveCount[i];
+            move[j] = i == root ? Move.NONE : move[i];
+            positionKey[j] = positionKey[i];
+            childCount.set(j, leaf ? 0 : childCount.get(i));
+            visits.set(j, visits.get(i));
+            for (int c = 0; c < COLOURS; c++) {
+                rewards.set(j * COLOURS + c, rewards.get(i * COLOURS + c));
+            }
+            amafVisits.set(j, amafVisits.get(i));
+            amafRewards.set(j, amafRewards.get(i));
+            provenOutcome.set(j, provenOutcome.get(i));
+            claimed.set(j, 0);
+        }
+        size.set(kept);
+        // children were moved after their parents, so fix the links last
+        for (int j = 0; j < kept; j++) {
+            if (firstChild[j] != NONE) {
+                firstChild[j] = remap[firstChild[j]];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return True if compacting keeps the children of a node
+     */
+    private boolean keepsChildren(int node, int root, int minVisits) {
+        return firstChild[node] != NONE && (node == root || visits.get(node) >= minVisits);
+    }
+}
@@ -10,6 +10,11 @@ import threeChess.*;
 public class ParanoidAgentPruning extends Agent {
 
     private static final String name = "ParanoidAgentPruning";
+    // the deepest search tried, however much time is left
+    private static final int MAX_DEPTH = 6;
+    // decides how deep to search, by when each depth is done
+    private final TimeManager time = new TimeManager();
+    private final int[] moveBuffer = new int[Board.MAX_MOVES];
 
     /**
      * A no argument constructor, required for tournament management.
@@ -29,17 +34,37 @@ public class ParanoidAgentPruning extends Agent {
      *         is the position to move that piece to.
      **/
     public Position[] playMove(Board board) {
+        time.start(board);
+        // a single legal move or a King to take needs no search
+        int forced = TimeManager.getForcedMove(board, moveBuffer);
+        if (forced != Move.NONE) {
+            return Move.toPositions(forced);
+        }
         // get maximising player's turn
         Colour playerColour = board.getTurn();
-        // set depth of 2
-        Object result[] = paranoidSearchPruning(board, 2, 2, playerColour, Integer.MIN_VALUE, Integer.MAX_VALUE);
-        return new Position[] { (Position) result[0], (Position) result[1] };
+        // search one ply deeper at a time, keeping the move of the deepest search
+        // finished before the time manager stops
+        Position[] bestMove = null;
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            Object result[] = paranoidSearchPruning(board, depth, depth, playerColour, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE);
+            if (depth > 0 && time.isStopped()) {
+                break; // the search was cut off
+            }
+            bestMove = new Position[] { (Position) result[0], (Position) result[1] };
+            if (time.shouldStop(Move.encode(bestMove))) {
+                break;
+            }
+        }
+        return bestMove;
     }
 
     /**
      * The root player assumes that all the opponents build a coalition against him.
      * The root player is the only max-player and all the other players are
-     * min-players which try to minimize the value of the root player.
+     * min-players which try to minimize the value of the root player. Searches
+     * deeper than a depth of 0 return at once when the time manager stops, with an
+     * incomplete result.
      * 
      * @author Jonathan Neo (21683439)
      * @param board           the chess board
@@ -55,87 +80,78 @@ public class ParanoidAgentPruning extends Agent {
         // if it is players turn, then maximising player, else minimising player
         int worstScore = maxPlayerColour == board.getTurn() ? Integer.MIN_VALUE : Integer.MAX_VALUE;
         int score; // final score
-        // get positions for the specified player
-        Position[] occupiedPositions = board.getPositions(board.getTurn()).toArray(new Position[0]);
-        Position start = occupiedPositions[0];
-        Position end = occupiedPositions[0];
+        // the player to move, saved as the board is changed in place by the search below
+        Colour turn = board.getTurn();
+        // the player's pieces are read from the board's piece list, which the search
+        // below leaves in the same order after each move is unmade
+        Position start = board.getPieceLocation(turn, 0);
+        Position end = start;
         // used to hold the best move seen so far. A list containing: start, end, score
         Object best[] = { start, end, worstScore };
         // for each of the player's piece on the board...
-        for (Position position : occupiedPositions) {
-            start = position;
+        for (int index = 0; index < board.getPieceCount(turn); index++) {
+            start = board.getPieceLocation(turn, index);
             end = start;
             Piece piece = board.getPiece(start); // get the piece occupying the position
 
-            Direction[][] steps = piece.getType().getSteps(); // get steps that the piece type can move
-            // get number of repetitions of steps the piece can take
-            int maxReps = piece.getType().getStepReps();
-
-            // for each step the piece can take...
-            for (Direction[] step : steps) {
-
-                // for each repitition option...
-                for (int reps = 1; reps <= maxReps; reps++) {
+            // for each ray of positions the piece can move along...
+            for (Position[] ray : MoveTable.getRays(piece, start)) {
 
-                    // get end position
-                    for (int i = 0; i < reps; i++) {
-                        try {
-                            end = board.step(piece, step, end, start.getColour() != end.getColour());
-                        } catch (ImpossiblePositionException e) {
-                            // can't go any further
-                            reps = maxReps;
-                        }
-                    }
+                // for each end position, stopping after the first occupied position...
+                for (int reps = 0; reps < ray.length && (reps == 0 || board.getPiece(ray[reps - 1]) == null); reps++) {
+                    end = ray[reps];
 
                     // if move is legal
                     if (board.isLegalMove(start, end)) {
+                        if (startDepth > 0 && time.isStopped()) {
+                            return best;
+                        }
                         try {
-                            Board b = (Board) board.clone(); // copy board
-                            b.move(start, end);
-
-                            // check for checkmate
-                            if (depth == startDepth) {
-                                if (b.gameOver()) {
-                                    if (b.getWinner() == maxPlayerColour) {
-                                        return new Object[] { start, end, Integer.MAX_VALUE };
-                                    } else {
-                                        continue; // skip this move if it can cause me to lose
+                            board.makeMove(start, end); // play the move in place, instead of on a copy
+                            try {
+                                // check for checkmate
+                                if (depth == startDepth) {
+                                    if (board.gameOver()) {
+                                        if (board.getWinner() == maxPlayerColour) {
+                                            return new Object[] { start, end, Integer.MAX_VALUE };
+                                        } else {
+                                            continue; // skip this move if it can cause me to lose
+                                        }
                                     }
                                 }
-                            }
 
-                            // if game end
-                            if (depth == 0 || b.gameOver()) {
-                                score = evaluate(b, maxPlayerColour);
-                            }
+                                // if game end
+                                if (depth == 0 || board.gameOver()) {
+                                    score = evaluate(board, maxPlayerColour);
+                                }
 
-                            // maximising or minimising players
-                            else {
-                                Object result[] = paranoidSearchPruning(b, startDepth, depth - 1, maxPlayerColour,
-                                        alpha, beta);
-                                score = (int) result[2];
-                            }
+                                // maximising or minimising players
+                                else {
+                                    Object result[] = paranoidSearchPruning(board, startDepth, depth - 1, maxPlayerColour,
+                                            alpha, beta);
+                                    score = (int) result[2];
+                                }
 
-                            // if move was better than previous, then keep it
-                            if ((maxPlayerColour == board.getTurn() && score > (int) best[2])
-                                    || (maxPlayerColour != board.getTurn() && score < (int) best[2])) {
-                                best = new Object[] { start, end, score };
-                            }
+                                // if move was better than previous, then keep it
+                                if ((maxPlayerColour == turn && score > (int) best[2])
+                                        || (maxPlayerColour != turn && score < (int) best[2])) {
+                                    best = new Object[] { start, end, score };
+                                }
 
-                            if (maxPlayerColour == board.getTurn() && score > alpha) {
-                                alpha = score;
-                            }
+                                if (maxPlayerColour == turn && score > alpha) {
+                                    alpha = score;
+                                }
 
-                            if (maxPlayerColour != board.getTurn() && score < beta) {
-                                beta = score;
-                            }
+                                if (maxPlayerColour != turn && score < beta) {
+                                    beta = score;
+                                }
 
-                            if (beta <= alpha) {
-                                continue;
+                                if (beta <= alpha) {
+                                    continue;
+                                }
+                            } finally {
+                                board.unmakeMove(); // take the move back before trying the next one
                             }
-
-                        } catch (CloneNotSupportedException e) {
-                            System.out.println("cloning of board is not supported.");
                         } catch (ImpossiblePositionException e) {
                             System.out
                                     .println("piece cannot move from: " + start.toString() + ", to: " + end.toString());
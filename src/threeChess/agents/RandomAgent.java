@@ -32,21 +32,16 @@ public class RandomAgent extends Agent {
    *         is the position to move that piece to.
    **/
   public Position[] playMove(Board board) {
-    Position[] pieces = board.getPositions(board.getTurn()).toArray(new Position[0]);
-    Position start = pieces[0];
-    Position end = pieces[0]; // dummy illegal move
+    Colour turn = board.getTurn();
+    Position start = board.getPieceLocation(turn, 0);
+    Position end = start; // dummy illegal move
     while (!board.isLegalMove(start, end)) {
-      start = pieces[random.nextInt(pieces.length)];
-      Piece mover = board.getPiece(start);
-      Direction[][] steps = mover.getType().getSteps();
-      Direction[] step = steps[random.nextInt(steps.length)];
-      int reps = 1 + random.nextInt(mover.getType().getStepReps());
-      end = start;
-      try {
-        for (int i = 0; i < reps; i++)
-          end = board.step(mover, step, end, start.getColour() != end.getColour());
-      } catch (ImpossiblePositionException e) {
-      }
+      start = board.getPieceLocation(turn, random.nextInt(board.getPieceCount(turn)));
+      Position[][] rays = MoveTable.getRays(board.getPiece(start), start);
+      if (rays.length == 0)
+        continue; // the piece has nowhere to go
+      Position[] ray = rays[random.nextInt(rays.length)];
+      end = ray[random.nextInt(ray.length)];
     }
     return new Position[] { start, end };
   }
@@ -0,0 +1,169 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Plays out games from a position for Monte Carlo search, choosing moves with a
+ * RolloutPolicy. A rollout plays its
+ * moves on the board it is given with makeMove, and takes them all back before
+ * returning, so one scratch board serves every rollout of a thread: nothing is
+ * copied per rollout, and the board, and any tree the caller holds, is left as
+ * it was. Each engine has its own move buffer and random stream, so it must only
+ * be used by one thread.
+ *
+ * The result of a rollout is the reward of each player, following the scoring
+ * of ThreeChess.play: WIN for the player who took a King, LOSS for the player
+ * whose King was taken, and DRAW for the third player, who neither won nor
+ * lost, and for everyone in a game with no winner. A rollout may be cut off
+ * after a number of moves, when the position is scored from each player's
+ * Board.score and the scores are turned into each player's expected reward, so
+ * that no rollout takes much longer than the others.
+ *
+ * The moves of the last rollout are kept after they are taken back, for the
+ * all-moves-as-first statistics of MCTSAgent's RAVE mode.
+ */
+final class RolloutEngine {
+
+    /**
+     * The score difference that makes one player e (about 2.7) times as likely to
+     * win as another, in the evaluation of unfinished rollouts
+     */
+    private static final double SCORE_SCALE = 4.0;
+    /** The reward of the player who takes a King */
+    static final double WIN = 1;
+    /** The reward of a player who neither wins nor loses */
+    static final double DRAW = 0.5;
+    /** The reward of the player whose King is taken */
+    static final double LOSS = 0;
+    // cached, as values() clones the array on every call, and rollouts are scored constantly
+    private static final Colour[] COLOUR_VALUES = Colour.values();
+
+    private final SplittableRandom random;
+    private final int[] moveBuffer = new int[Board.MAX_MOVES];
+    // the result of the last rollout, indexed by colour ordinal
+    private final double[] rewards = new double[COLOUR_VALUES.length];
+    // the moves of the last rollout, grown when a rollout plays more
+    private int[] played = new int[256];
+    private int playedCount;
+
+    /**
+     * @param random The random stream used to pick moves, owned by the calling
+     *               thread
+     */
+    RolloutEngine(SplittableRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Plays legal moves until the game is over, no piece can move, or the
+     * depth limit is reached, then takes them back.
+     *
+     * @param board    The position to play out from, which is restored before
+     *                 returning
+     * @param maxDepth The number of moves after which the rollout is cut off and
+     *                 the position evaluated, or 0 to play to the end of the game
+     * @param policy   The policy choosing the moves
+     * @return The reward of each player, indexed by colour ordinal, as set by
+     *         setOutcome for a finished game, or estimated by evaluate for a
+     *         cut-off one. The array is reused by the next rollout.
+     */
+    double[] playOut(Board board, int maxDepth, RolloutPolicy policy) {
+        playedCount = 0;
+        try {
+            while (!board.gameOver() && (maxDepth == 0 || playedCount < maxDepth)) {
+                int count = board.generateMoves(moveBuffer);
+                if (count == 0)
+                    break; // no piece can move
+                int move = policy.choose(board, moveBuffer, count, random);
+                board.makeMove(move);
+                if (playedCount == played.length) {
+                    played = Arrays.copyOf(played, 2 * played.length);
+                }
+                played[playedCount++] = move;
+            }
+            if (board.gameOver() || playedCount < maxDepth) {
+                setOutcome(board.getWinner(), board.getLoser(), rewards);
+            } else {
+                evaluate(board, rewards);
+            }
+            return rewards;
+        } catch (ImpossiblePositionException e) {
+            return rewards; // generated moves are always legal
+        } finally {
+            for (int i = playedCount; i > 0; i--) {
+                board.unmakeMove();
+            }
+        }
+    }
+
+    /**
+     * @return An estimate of the bytes of heap held by the engine's buffers
+     */
+    long getMemoryUsage() {
+        return (long) Integer.BYTES * (moveBuffer.length + played.length);
+    }
+
+    /**
+     * @return The number of moves played by the last rollout
+     */
+    int getPlayedCount() {
+        return playedCount;
+    }
+
+    /**
+     * @return A move of the last rollout, the first being played by the player
+     *         to move at its start, and each after it by the next player
+     */
+    int getPlayedMove(int index) {
+        return played[index];
+    }
+
+    /**
+     * Sets the rewards of a finished game.
+     *
+     * @param winner  The player who took a King, or null if there is none
+     * @param loser   The player whose King was taken, or null if there is none
+     * @param rewards Set to the reward of each player, indexed by colour ordinal
+     */
+    static void setOutcome(Colour winner, Colour loser, double[] rewards) {
+        for (Colour c : COLOUR_VALUES) {
+            rewards[c.ordinal()] = c == winner ? WIN : c == loser ? LOSS : DRAW;
+        }
+    }
+
+    /**
+     * Estimates the expected reward of each player in an unfinished game, from
+     * the players' scores (the value of their pieces on the board and of the
+     * pieces they have taken). The chances of winning are a softmax of the
+     * scores, and the chances of losing a softmax of the negated scores, so each
+     * adds up to 1 over the players, and every SCORE_SCALE points of score lead
+     * multiply a player's chance of winning, or of not losing, by e. A player
+     * neither winning nor losing scores DRAW.
+     *
+     * @param board   The position to evaluate
+     * @param rewards Set to the expected reward of each player, indexed by colour
+     *                ordinal
+     */
+    static void evaluate(Board board, double[] rewards) {
+        int best = Integer.MIN_VALUE;
+        int worst = Integer.MAX_VALUE;
+        for (Colour c : COLOUR_VALUES) {
+            best = Math.max(best, board.score(c));
+            worst = Math.min(worst, board.score(c));
+        }
+        double winTotal = 0;
+        double lossTotal = 0;
+        for (Colour c : COLOUR_VALUES) {
+            winTotal += Math.exp((board.score(c) - best) / SCORE_SCALE);
+            lossTotal += Math.exp((worst - board.score(c)) / SCORE_SCALE);
+        }
+        for (Colour c : COLOUR_VALUES) {
+            double win = Math.exp((board.score(c) - best) / SCORE_SCALE) / winTotal;
+            double loss = Math.exp((worst - board.score(c)) / SCORE_SCALE) / lossTotal;
+            rewards[c.ordinal()] = win * WIN + loss * LOSS + (1 - win - loss) * DRAW;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+import java.util.SplittableRandom;
+
+/**
+ * Chooses the moves of the rollouts played by MCTSAgent. A policy is given the
+ * legal moves of the player to move, as generated by Board.generateMoves with
+ * their capture and promotion flags, and picks one using the random stream of
+ * the rollout's thread. Policies must not change the board, and should not
+ * allocate, as they are called at every move of every rollout. The policies
+ * provided hold no state, so one instance may serve every thread.
+ */
+public interface RolloutPolicy {
+
+    /** Picks a legal move uniformly at random. */
+    RolloutPolicy UNIFORM = new Uniform();
+    /** Takes a King whenever possible, and otherwise picks uniformly. */
+    RolloutPolicy KING_CAPTURE_FIRST = new KingCaptureFirst();
+    /**
+     * Picks captures in proportion to the value of the piece taken over the value
+     * of the piece taking it (most valuable victim, least valuable attacker).
+     */
+    RolloutPolicy MVV_LVA = new MvvLva();
+
+    /**
+     * Chooses a move.
+     *
+     * @param board  The position, with the player to move choosing
+     * @param moves  The legal moves, encoded as described in Move
+     * @param count  The number of legal moves at the start of the array, at
+     *               least 1
+     * @param random The random stream of the calling thread
+     * @return The chosen move
+     */
+    int choose(Board board, int[] moves, int count, SplittableRandom random);
+
+    /**
+     * Creates an epsilon-greedy policy, which picks uniformly at random with
+     * probability epsilon, and otherwise picks the move gaining the most material
+     * in one move (the value of the piece taken, plus the gain of a promotion),
+     * breaking ties at random.
+     *
+     * @param epsilon The probability of a random move, from 0 to 1
+     * @return The policy
+     */
+    static RolloutPolicy epsilonGreedy(double epsilon) {
+        return new EpsilonGreedy(epsilon);
+    }
+
+    /**
+     * @return The value of the piece a move takes, or 0 if it takes nothing.
+     */
+    static int victimValue(Board board, int move) {
+        if (!Move.isCapture(move)) {
+            return 0;
+        }
+        return board.getPiece(Move.getEnd(move)).getValue();
+    }
+
+    /** @see RolloutPolicy#UNIFORM */
+    final class Uniform implements RolloutPolicy {
+        public int choose(Board board, int[] moves, int count, SplittableRandom random) {
+            return moves[random.nextInt(count)];
+        }
+
+        public String toString() {
+            return "uniform";
+        }
+    }
+
+    /** @see RolloutPolicy#KING_CAPTURE_FIRST */
+    final class KingCaptureFirst implements RolloutPolicy {
+        private static final Colour[] COLOURS = Colour.values();
+
+        // Asks the board's bit masks whether either King is attacked, rather than
+        // looking at every move, and only then finds the move among the legal ones
+        public int choose(Board board, int[] moves, int count, SplittableRandom random) {
+            Colour turn = board.getTurn();
+            for (Colour colour : COLOURS) {
+                Position king = colour == turn ? null : board.getKingPosition(colour);
+                Position attacker = king == null ? null : board.getAttacker(king, turn);
+                if (attacker != null) {
+                    int key = Move.getKey(Move.encode(attacker, king));
+                    for (int i = 0; i < count; i++) {
+                        if (Move.getKey(moves[i]) == key) {
+                            return moves[i];
+                        }
+                    }
+                }
+            }
+            return moves[random.nextInt(count)];
+        }
+
+        public String toString() {
+            return "king-capture-first";
+        }
+    }
+
+    /** @see RolloutPolicy#MVV_LVA */
+    final class MvvLva implements RolloutPolicy {
+        // the weight of a move that takes nothing, relative to the weight
+        // VICTIM_WEIGHT * victim / attacker of a capture
+        private static final int QUIET_WEIGHT = 1;
+        private static final int VICTIM_WEIGHT = 16;
+
+        public int choose(Board board, int[] moves, int count, SplittableRandom random) {
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                total += weight(board, moves[i]);
+            }
+            int pick = random.nextInt(total);
+            for (int i = 0; i < count; i++) {
+                pick -= weight(board, moves[i]);
+                if (pick < 0) {
+                    return moves[i];
+                }
+            }
+            return moves[count - 1];
+        }
+
+        private static int weight(Board board, int move) {
+            int victim = victimValue(board, move);
+            if (victim == 0) {
+                return QUIET_WEIGHT;
+            }
+            int attacker = board.getPiece(Move.getStart(move)).getValue();
+            return QUIET_WEIGHT + VICTIM_WEIGHT * victim / attacker;
+        }
+
+        public String toString() {
+            return "mvv-lva";
+        }
+    }
+
+    /** @see RolloutPolicy#epsilonGreedy(double) */
+    final class EpsilonGreedy implements RolloutPolicy {
+        // the gain of promoting a pawn to a Queen
+        private static final int PROMOTION_GAIN = PieceType.QUEEN.getValue() - PieceType.PAWN.getValue();
+        private final double epsilon;
+
+        private EpsilonGreedy(double epsilon) {
+            if (epsilon < 0 || epsilon > 1) {
+                throw new IllegalArgumentException("Epsilon must be between 0 and 1.");
+            }
+            this.epsilon = epsilon;
+        }
+
+        public int choose(Board board, int[] moves, int count, SplittableRandom random) {
+            if (random.nextDouble() < epsilon) {
+                return moves[random.nextInt(count)];
+            }
+            int best = moves[0];
+            int bestGain = -1;
+            int ties = 0;
+            for (int i = 0; i < count; i++) {
+                int gain = victimValue(board, moves[i]) + (Move.isPromotion(moves[i]) ? PROMOTION_GAIN : 0);
+                if (gain > bestGain) {
+                    best = moves[i];
+                    bestGain = gain;
+                    ties = 1;
+                } else if (gain == bestGain && random.nextInt(++ties) == 0) {
+                    best = moves[i]; // each tied move is kept with equal chance
+                }
+            }
+            return best;
+        }
+
+        public String toString() {
+            return "epsilon-greedy(" + epsilon + ")";
+        }
+    }
+}
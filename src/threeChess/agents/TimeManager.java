@@ -0,0 +1,191 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+/**
+ * Decides how long a search agent thinks about a move. When a move starts, the
+ * agent's remaining clock is divided between the moves it expects to have
+ * left, given the move number and the expected length of a game, to set a soft
+ * deadline, by which the search should stop if its best move is settled, and a
+ * hard deadline, which it must never pass. A search stops early, before the
+ * soft deadline, once its best move has not changed for half of the time to
+ * the soft deadline. Deadlines are measured with System.nanoTime.
+ *
+ * ThreeChess.play starts every clock of an untimed game at 1 millisecond and
+ * never runs it down, so a game whose time limit (Board.getTimeLimit) is 1
+ * millisecond or less is untimed, and every move has a fixed budget. In a timed
+ * game a nearly empty clock gives a move no time at all.
+ *
+ * While the agent ponders, on the other players' time, there are no deadlines
+ * and the search runs until it is stopped.
+ *
+ * One thread starts the timer and reports the best move, but any thread may
+ * check whether the search is stopped.
+ */
+public final class TimeManager {
+
+    /** The default expected length of a game, in moves per player */
+    public static final int EXPECTED_MOVES = 60;
+    /** The default time per move of an untimed game, in milliseconds */
+    public static final long UNTIMED_BUDGET = 200;
+    // the fewest moves the clock is divided between, however long the game has
+    // already been
+    private static final int MIN_MOVES_TO_GO = 10;
+    // the hard deadline is this many times as far away as the soft deadline...
+    private static final int HARD_FACTOR = 3;
+    // ...but never more than this share of the clock away
+    private static final int MAX_CLOCK_SHARE = 4;
+    // the time left on the clock for copying the board and running the agent,
+    // in milliseconds
+    private static final long SAFETY_MARGIN = 20;
+    // after the soft deadline, the search goes on while its best move has changed
+    // in the last 1/UNSTABLE_SHARE of the time to the soft deadline
+    private static final int UNSTABLE_SHARE = 8;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+    private static final int COLOURS = Colour.values().length;
+
+    private final int expectedMoves;
+    private final long untimedBudget;
+    private long startTime;
+    private long softDeadline;
+    private long hardDeadline;
+    // the best move last reported, and when it last changed
+    private int bestMove;
+    private long lastChange;
+    private volatile boolean stopped;
+    // true while pondering, when only stop ends the search
+    private volatile boolean pondering;
+
+    /**
+     * Creates a time manager expecting games of EXPECTED_MOVES moves per player,
+     * and thinking for UNTIMED_BUDGET per move in untimed games.
+     */
+    public TimeManager() {
+        this(EXPECTED_MOVES, UNTIMED_BUDGET);
+    }
+
+    /**
+     * @param expectedMoves The expected length of a game, in moves per player
+     * @param untimedBudget The time per move of an untimed game, in milliseconds
+     */
+    public TimeManager(int expectedMoves, long untimedBudget) {
+        if (expectedMoves < 1 || untimedBudget < 0) {
+            throw new IllegalArgumentException("Invalid time management parameters.");
+        }
+        this.expectedMoves = expectedMoves;
+        this.untimedBudget = untimedBudget;
+    }
+
+    /**
+     * Starts timing a move, setting the deadlines from the clock of the player to
+     * move.
+     *
+     * @param board The position the move is played from
+     */
+    public synchronized void start(Board board) {
+        startTime = System.nanoTime();
+        int clock = board.getTimeLeft(board.getTurn());
+        long soft;
+        long hard;
+        if (board.getTimeLimit() <= 1) {
+            soft = untimedBudget;
+            hard = untimedBudget;
+        } else {
+            int movesToGo = Math.max(MIN_MOVES_TO_GO, expectedMoves - board.getMoveCount() / COLOURS);
+            long usable = Math.max(0, clock - SAFETY_MARGIN);
+            hard = Math.min(usable * HARD_FACTOR / movesToGo, usable / MAX_CLOCK_SHARE);
+            soft = Math.min(usable / movesToGo, hard);
+        }
+        softDeadline = startTime + soft * NANOS_PER_MILLI;
+        hardDeadline = startTime + hard * NANOS_PER_MILLI;
+        bestMove = Move.NONE;
+        lastChange = startTime;
+        pondering = false;
+        stopped = false;
+    }
+
+    /**
+     * Starts an open-ended search on the other players' time, which runs until
+     * stop is called, whatever moves are reported.
+     */
+    public synchronized void ponder() {
+        bestMove = Move.NONE;
+        pondering = true;
+        stopped = false;
+    }
+
+    /**
+     * Stops the search at once, as isStopped will then report.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return True if the search was started by ponder, rather than start
+     */
+    public boolean isPondering() {
+        return pondering;
+    }
+
+    /**
+     * @return True if the search must stop, because the hard deadline has passed
+     *         or shouldStop has decided so.
+     */
+    public boolean isStopped() {
+        if (!stopped && !pondering && System.nanoTime() - hardDeadline >= 0) {
+            stopped = true;
+        }
+        return stopped;
+    }
+
+    /**
+     * Reports the best move found so far, and decides whether the search should
+     * stop: at the hard deadline; after the soft deadline, unless the best move
+     * has just changed; and before it, once the best move has been the same for
+     * half of the time to the soft deadline. A pondering search only stops when
+     * stop is called.
+     *
+     * @param bestMove The best move found so far, encoded as described in Move
+     * @return True if the search should stop, as isStopped will then report.
+     */
+    public synchronized boolean shouldStop(int bestMove) {
+        if (pondering) {
+            return stopped;
+        }
+        long now = System.nanoTime();
+        if (Move.getKey(bestMove) != Move.getKey(this.bestMove)) {
+            this.bestMove = bestMove;
+            lastChange = now;
+        }
+        long budget = softDeadline - startTime;
+        long stable = now - lastChange;
+        if (now - hardDeadline >= 0 || stable >= budget / 2
+                || (now - softDeadline >= 0 && stable >= budget / UNSTABLE_SHARE)) {
+            stopped = true;
+        }
+        return stopped;
+    }
+
+    /**
+     * Finds a move needing no search: the only legal move, or a move taking a
+     * King, which wins the game at once.
+     *
+     * @param board  The position to move from
+     * @param buffer A move buffer of Board.MAX_MOVES owned by the calling thread
+     * @return The move, encoded as described in Move, or Move.NONE if the
+     *         position needs a search
+     */
+    public static int getForcedMove(Board board, int[] buffer) {
+        int count = board.generateMoves(buffer);
+        if (count == 1) {
+            return buffer[0];
+        }
+        for (int i = 0; i < count; i++) {
+            if (Move.isCapture(buffer[i]) && board.getPiece(Move.getEnd(buffer[i])).getType() == PieceType.KING) {
+                return buffer[i];
+            }
+        }
+        return Move.NONE;
+    }
+}
@@ -0,0 +1,161 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A fixed size hash table of the statistics of positions, keyed by
+ * Board.hashKey, so that the nodes of a Monte Carlo tree reached by different
+ * move orders (transpositions) share their visits and rewards. The table is
+ * allocated once and kept from move to move, as positions keep their
+ * statistics wherever the root is.
+ *
+ * The table is split into buckets of two entries, and a position may only be
+ * held by the two entries of the bucket given by its key. When both are taken
+ * by other positions, the entry not used by the current or the previous search
+ * is replaced, or else the entry with fewer visits. Several threads may use one
+ * table: lookups do not lock, and an entry replaced while a thread updates it
+ * may lose or gain one simulation, which only perturbs the statistics.
+ */
+final class TranspositionTable {
+
+    /** Marks the absence of an entry */
+    static final int NONE = -1;
+    // the number of colours, and so of rewards per entry
+    private static final int COLOURS = Colour.values().length;
+    // the fixed point scale of rewards
+    private static final double REWARD_SCALE = 1 << 16;
+    // the number of entries per bucket
+    private static final int WAYS = 2;
+    /** The bytes of heap held for each entry of capacity, by the arrays below */
+    static final int BYTES_PER_ENTRY = (1 + COLOURS) * Long.BYTES + 2 * Integer.BYTES;
+
+    private final int capacity;
+    private final AtomicLongArray keys;
+    private final AtomicIntegerArray visits;
+    // the rewards of each entry, COLOURS per entry, indexed by entry * COLOURS +
+    // colour ordinal
+    private final AtomicLongArray rewards;
+    // the search in which each entry was last used, 0 for an empty entry
+    private final int[] generation;
+    private int currentGeneration = 1;
+
+    /**
+     * @param capacity The number of entries, rounded up to a power of two of at
+     *                 least WAYS
+     */
+    TranspositionTable(int capacity) {
+        this.capacity = Math.max(WAYS, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        keys = new AtomicLongArray(this.capacity);
+        visits = new AtomicIntegerArray(this.capacity);
+        rewards = new AtomicLongArray(this.capacity * COLOURS);
+        generation = new int[this.capacity];
+    }
+
+    /**
+     * Starts a new search, so that the entries not used since the previous one
+     * are replaced first.
+     */
+    synchronized void nextSearch() {
+        currentGeneration++;
+    }
+
+    /**
+     * @return The number of entries
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param key The hash key of a position
+     * @return The entry holding the position, or NONE if it is not in the table
+     */
+    int find(long key) {
+        int bucket = (int) key & (capacity - WAYS);
+        for (int entry = bucket; entry < bucket + WAYS; entry++) {
+            if (keys.get(entry) == key && generation[entry] != 0) {
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Finds the entry holding a position, adding the position with no visits if
+     * it is not in the table, in place of the entry of its bucket least worth
+     * keeping.
+     *
+     * @param key The hash key of a position
+     * @return The entry holding the position
+     */
+    synchronized int findOrAdd(long key) {
+        int entry = find(key);
+        if (entry != NONE) {
+            generation[entry] = currentGeneration;
+            return entry;
+        }
+        int bucket = (int) key & (capacity - WAYS);
+        int victim = bucket;
+        for (int e = bucket; e < bucket + WAYS; e++) {
+            if (worth(e) < worth(victim)) {
+                victim = e;
+            }
+        }
+        keys.set(victim, key);
+        visits.set(victim, 0);
+        for (int c = 0; c < COLOURS; c++) {
+            rewards.set(victim * COLOURS + c, 0);
+        }
+        generation[victim] = currentGeneration;
+        return victim;
+    }
+
+    /**
+     * @return How much an entry is worth keeping: 0 if it is empty or was last
+     *         used before the previous search, and otherwise 1 more than its
+     *         visits
+     */
+    private long worth(int entry) {
+        if (generation[entry] < currentGeneration - 1) {
+            return 0;
+        }
+        return visits.get(entry) + 1L;
+    }
+
+    /**
+     * @return The number of times the position of an entry has been visited
+     */
+    int getVisits(int entry) {
+        return visits.get(entry);
+    }
+
+    /**
+     * @return The sum of a player's rewards over the simulated games through the
+     *         position of an entry
+     */
+    double getReward(int entry, Colour colour) {
+        return rewards.get(entry * COLOURS + colour.ordinal()) / REWARD_SCALE;
+    }
+
+    /**
+     * Increment an entry's visited count
+     */
+    void incrementVisited(int entry) {
+        visits.incrementAndGet(entry);
+    }
+
+    /**
+     * Adds the result of a simulation to an entry's rewards
+     *
+     * @param reward The reward of each player, indexed by colour ordinal
+     */
+    void addRewards(int entry, double[] reward) {
+        for (int c = 0; c < COLOURS; c++) {
+            if (reward[c] != 0) {
+                rewards.addAndGet(entry * COLOURS + c, Math.round(reward[c] * REWARD_SCALE));
+            }
+        }
+    }
+}